@@ -0,0 +1,145 @@
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Baseline predictor: predicts the rating of user u for movie i as
+ *      b(u, i) = mu + b(u) + b(i)
+ * where mu is the global mean rating, b(i) the movie bias (how much better
+ * the movie is rated than average) and b(u) the user bias. Biases are
+ * regularized towards 0, so movies and users with few ratings stay close to
+ * the global mean:
+ *      b(i) = Σ[r(u, i) - mu - b(u)] / (lambdaMovie + n(i))
+ *      b(u) = Σ[r(u, i) - mu - b(i)] / (lambdaUser + n(u))
+ * Both are fitted by alternating a few passes over the ratings, in parallel
+ * over the users and over the movies.
+ *
+ * The baseline gives a prediction for every user and movie, also those that
+ * are missing from the training data (the bias is 0 then).
+ */
+public class BaselinePredictor {
+
+    /** default regularization, as proposed by Koren (Factor in the Neighbors, 2010) */
+    static final double LAMBDA_USER = 10;
+    static final double LAMBDA_MOVIE = 25;
+    static final int ITERATIONS = 3;
+
+    private double globalMean;
+    private double[] userBiases;    // by internal user id
+    private double[] movieBiases;   // by internal movie id
+    private int[] movieIDs;         // internal to true movie ID, sorted
+
+    /**
+     * Fits the baseline with default parameters
+     */
+    public BaselinePredictor(MovieHandler ratings) {
+        this(ratings, LAMBDA_USER, LAMBDA_MOVIE, ITERATIONS);
+    }
+
+    /**
+     * Fits the baseline
+     * @param lambdaUser regularization of the user biases
+     * @param lambdaMovie regularization of the movie biases
+     * @param iterations number of alternating passes
+     */
+    public BaselinePredictor(MovieHandler ratings, double lambdaUser, double lambdaMovie, int iterations) {
+        int N = ratings.getNumUsers();
+        int M = ratings.getNumMovies();
+        this.movieIDs = ratings.getMovieIDArray();
+
+        // ratings in CSR layout, by user and by movie, to run both passes in parallel
+        int[] userOffsets = new int[N + 1];
+        for (int u = 0; u < N; u++) {
+            userOffsets[u + 1] = userOffsets[u] + ratings.getUsersToRatings().get(ratings.getUserIDs().get(u)).size();
+        }
+        int nnz = userOffsets[N];
+        int[] userMovies = new int[nnz];
+        float[] userValues = new float[nnz];
+        double sum = 0;
+        for (int u = 0; u < N; u++) {
+            int pos = userOffsets[u];
+            for (MovieRating r: ratings.getUsersToRatings().get(ratings.getUserIDs().get(u))) {
+                userMovies[pos] = ratings.getInternalMovieID(r.getMovieID());
+                userValues[pos] = (float) r.getRating();
+                sum += r.getRating();
+                pos++;
+            }
+        }
+        RatingsByMovie byMovie = ratings.getRatingsByMovie();
+        int[] movieUsers = byMovie.getUsers();
+        double[] movieValues = byMovie.getRatings();
+
+        this.globalMean = (nnz == 0) ? MovieHandler.DEFAULT_RATING : sum / nnz;
+        this.userBiases = new double[N];
+        this.movieBiases = new double[M];
+        double mu = this.globalMean;
+        double[] bu = this.userBiases;
+        double[] bi = this.movieBiases;
+        for (int it = 0; it < iterations; it++) {
+            IntStream.range(0, M).parallel().forEach(m -> {
+                double residuals = 0;
+                for (int p = byMovie.getStart(m); p < byMovie.getEnd(m); p++) {
+                    residuals += movieValues[p] - mu - bu[movieUsers[p]];
+                }
+                bi[m] = residuals / (lambdaMovie + byMovie.getEnd(m) - byMovie.getStart(m));
+            });
+            IntStream.range(0, N).parallel().forEach(u -> {
+                double residuals = 0;
+                for (int p = userOffsets[u]; p < userOffsets[u + 1]; p++) {
+                    residuals += userValues[p] - mu - bi[userMovies[p]];
+                }
+                bu[u] = residuals / (lambdaUser + userOffsets[u + 1] - userOffsets[u]);
+            });
+        }
+    }
+
+    public double getGlobalMean() {
+        return globalMean;
+    }
+
+    /**
+     * @param user internal user id, negative if the user is unknown
+     * @return the user bias, 0 for unknown users
+     */
+    public double getUserBias(int user) {
+        return (user < 0 || user >= userBiases.length) ? 0 : userBiases[user];
+    }
+
+    /**
+     * @param movie internal movie id, negative if the movie is unknown
+     * @return the movie bias, 0 for unknown movies
+     */
+    public double getMovieBias(int movie) {
+        return (movie < 0 || movie >= movieBiases.length) ? 0 : movieBiases[movie];
+    }
+
+    /**
+     * Looks up a movie once, for the many predictions of the same movie (e.g. one
+     * per neighbor), see predictByIndex
+     * @param movieID true movie id
+     * @return the index of the movie in the biases (its internal id when the baseline
+     * was fitted), negative if the movie is unknown
+     */
+    public int getMovieIndex(int movieID) {
+        return Arrays.binarySearch(movieIDs, movieID);
+    }
+
+    /**
+     * Baseline rating of a user for a movie
+     * @param user internal user id, negative if the user is unknown
+     * @param movieID true movie id
+     * @return mu + b(u) + b(i)
+     */
+    public double predict(int user, int movieID) {
+        return predictByIndex(user, getMovieIndex(movieID));
+    }
+
+    /**
+     * Same as predict, without looking up the movie: O(1)
+     * @param user internal user id, negative if the user is unknown
+     * @param movie index of the movie given by getMovieIndex
+     * @return mu + b(u) + b(i)
+     */
+    public double predictByIndex(int user, int movie) {
+        return globalMean + getUserBias(user) + getMovieBias(movie);
+    }
+}
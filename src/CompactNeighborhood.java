@@ -0,0 +1,187 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Compact, immutable representation of the neighbourhood of a user.
+ *
+ * Neighbors are sorted by id. The ids are stored as the differences between
+ * consecutive ids, encoded as varints (7 bits per byte, the high bit marks
+ * that another byte follows), so most ids take one or two bytes. Similarities
+ * are quantized to 16 bit fixed point with 4 decimals, the precision of the
+ * matrix file. Together, a neighbor takes about 3-4 bytes instead of the ~70
+ * bytes of a Neighbor object in a HashSet.
+ */
+public final class CompactNeighborhood {
+
+    /** fixed point scale: 4 decimals, [-1, 1] maps to [-10000, 10000] */
+    static final int SCALE = 10000;
+
+    private final int size;
+    private final byte[] ids;
+    private final short[] similarities;
+
+    private CompactNeighborhood(int size, byte[] ids, short[] similarities) {
+        this.size = size;
+        this.ids = ids;
+        this.similarities = similarities;
+    }
+
+    /**
+     * Encodes a neighbourhood
+     * @param neighbors neighbors, in any order
+     * @return the compact neighbourhood
+     */
+    public static CompactNeighborhood of(Collection<Neighbor> neighbors) {
+        Neighbor[] sorted = neighbors.toArray(new Neighbor[0]);
+        Arrays.sort(sorted, (n1, n2) -> Integer.compare(n1.getUserID(), n2.getUserID()));
+        // a varint of an int takes at most 5 bytes
+        byte[] ids = new byte[5 * sorted.length];
+        short[] similarities = new short[sorted.length];
+        int pos = 0;
+        int previous = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            pos = writeVarint(ids, pos, sorted[i].getUserID() - previous);
+            previous = sorted[i].getUserID();
+            similarities[i] = quantize(sorted[i].getSimilarity());
+        }
+        return new CompactNeighborhood(sorted.length, Arrays.copyOf(ids, pos), similarities);
+    }
+
+    static short quantize(double similarity) {
+        return (short) Math.round(similarity * SCALE);
+    }
+
+    static double dequantize(short similarity) {
+        return similarity / (double) SCALE;
+    }
+
+    private static int writeVarint(byte[] buffer, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte) value;
+        return pos;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of bytes used by the ids and similarities
+     */
+    public int getSizeInBytes() {
+        return ids.length + 2 * similarities.length;
+    }
+
+    /**
+     * @return a cursor positioned before the first neighbor
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Returns the similarity with a neighbor. Decodes the ids up to the neighbor,
+     * use a cursor to go over all neighbors.
+     * @param userID internal id of the neighbor
+     * @return the similarity, NaN if userID is not a neighbor
+     */
+    public double getSimilarity(int userID) {
+        Cursor c = cursor();
+        while (c.next()) {
+            if (c.getUserID() == userID) return c.getSimilarity();
+            if (c.getUserID() > userID) break;  // ids are sorted
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Decodes the neighbourhood into Neighbor objects
+     * @return a new set, changing it does not change this neighbourhood
+     */
+    public Set<Neighbor> toSet() {
+        Set<Neighbor> neighbors = new HashSet<>(2 * size);
+        Cursor c = cursor();
+        while (c.next()) {
+            neighbors.add(new Neighbor(c.getUserID(), c.getSimilarity()));
+        }
+        return neighbors;
+    }
+
+    /**
+     * Writes the neighbourhood in its encoded form
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(size);
+        out.writeInt(ids.length);
+        out.write(ids);
+        for (short similarity: similarities) {
+            out.writeShort(similarity);
+        }
+    }
+
+    /**
+     * Reads a neighbourhood written by write()
+     */
+    public static CompactNeighborhood read(DataInput in) throws IOException {
+        int size = in.readInt();
+        byte[] ids = new byte[in.readInt()];
+        in.readFully(ids);
+        short[] similarities = new short[size];
+        for (int i = 0; i < size; i++) {
+            similarities[i] = in.readShort();
+        }
+        return new CompactNeighborhood(size, ids, similarities);
+    }
+
+    /**
+     * Goes over the neighbors in order of id, decoding them on the fly:
+     *      Cursor c = neighborhood.cursor();
+     *      while (c.next()) { c.getUserID(); c.getSimilarity(); }
+     */
+    public final class Cursor {
+        private int index = -1;
+        private int pos = 0;
+        private int userID = 0;
+
+        private Cursor() {
+        }
+
+        /**
+         * Moves to the next neighbor
+         * @return false if there are no more neighbors
+         */
+        public boolean next() {
+            if (index + 1 >= size) return false;
+            index++;
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = ids[pos++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);  // high bit set: more bytes follow
+            userID += delta;
+            return true;
+        }
+
+        /**
+         * @return internal id of the current neighbor
+         */
+        public int getUserID() {
+            return userID;
+        }
+
+        /**
+         * @return similarity with the current neighbor, with 4 decimals
+         */
+        public double getSimilarity() {
+            return dequantize(similarities[index]);
+        }
+    }
+}
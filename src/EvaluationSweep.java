@@ -0,0 +1,226 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Evaluates several configurations of the recommender in one run, instead of one
+ * make matrix + make predict per configuration.
+ * Example command to run:
+ *      java -cp .:bin/ EvaluationSweep -trainingFile data/ra.train -testFile data/ra.test
+ *          -kNeighbors 10,20,50,100 -reportFile data/ra.sweep
+ *
+ * The ratings are loaded once and the matrix is built once, keeping all neighbors.
+ * The neighbourhoods of every k are derived from it (see
+ * PearsonsCorrelation(PearsonsCorrelation, int)). Each k is evaluated with both
+ * centrings of MovieRunner (baseline and user means), all configurations at the
+ * same time over one parse of the test file.
+ *
+ * The report has one line per configuration with the RMSE, the build time (the
+ * shared build plus the derivation of the k) and the mean and 99th percentile
+ * prediction latency. Latencies are measured while the other configurations
+ * run, so they are comparable with each other rather than absolute.
+ */
+public class EvaluationSweep {
+
+    /**
+     * The test file, parsed once and shared (read only) by all configurations
+     */
+    static final class TestSet {
+        final int[] userIDs;
+        final int[] movieIDs;
+        final double[] ratings;
+
+        TestSet(String testFile) throws IOException {
+            List<String> lines = new ArrayList<>();
+            BufferedReader br = new BufferedReader(new FileReader(testFile));
+            try {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (!line.isEmpty()) lines.add(line);
+                }
+            } finally {
+                br.close();
+            }
+            userIDs = new int[lines.size()];
+            movieIDs = new int[lines.size()];
+            ratings = new double[lines.size()];
+            for (int i = 0; i < lines.size(); i++) {
+                String[] tokens = lines.get(i).split("::|\t");
+                userIDs[i] = Integer.parseInt(tokens[0]);
+                movieIDs[i] = Integer.parseInt(tokens[1]);
+                ratings[i] = Double.parseDouble(tokens[2]);
+            }
+        }
+
+        int size() {
+            return ratings.length;
+        }
+    }
+
+    /**
+     * Result of one configuration
+     */
+    static final class Result {
+        final int kNeighbors;
+        final boolean baselinePrediction;
+        final double rmse;
+        final long buildMillis;
+        final double meanLatencyMicros;
+        final double p99LatencyMicros;
+
+        Result(int kNeighbors, boolean baselinePrediction, double rmse, long buildMillis,
+               double meanLatencyMicros, double p99LatencyMicros) {
+            this.kNeighbors = kNeighbors;
+            this.baselinePrediction = baselinePrediction;
+            this.rmse = rmse;
+            this.buildMillis = buildMillis;
+            this.meanLatencyMicros = meanLatencyMicros;
+            this.p99LatencyMicros = p99LatencyMicros;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%10d %-10s %8.4f %10.3f %12.2f %12.2f", kNeighbors,
+                    baselinePrediction ? "baseline" : "userMean", rmse, buildMillis / 1000F,
+                    meanLatencyMicros, p99LatencyMicros);
+        }
+    }
+
+    static final String HEADER = String.format(Locale.US, "%10s %-10s %8s %10s %12s %12s",
+            "kNeighbors", "prediction", "RMSE", "build (s)", "mean (us)", "p99 (us)");
+
+    /**
+     * Predicts every rating of the test set with one configuration
+     * @param buildMillis time it took to build the neighbourhoods of the model
+     */
+    static Result evaluate(ModelGeneration model, int kNeighbors, boolean baselinePrediction,
+                           long buildMillis, TestSet test) {
+        int n = test.size();
+        long[] latencies = new long[n];
+        double summedErrorSq = 0;
+        for (int i = 0; i < n; i++) {
+            long start = System.nanoTime();
+            double estimate = MovieRunner.predictRating(model, test.userIDs[i], test.movieIDs[i], baselinePrediction);
+            latencies[i] = System.nanoTime() - start;
+            summedErrorSq += Math.pow(test.ratings[i] - estimate, 2);
+        }
+        long total = 0;
+        for (long latency: latencies) total += latency;
+        Arrays.sort(latencies);
+        double p99 = (n == 0) ? 0 : latencies[Math.min(n - 1, (int) Math.ceil(0.99 * n) - 1)] / 1000.0;
+        double mean = (n == 0) ? 0 : total / 1000.0 / n;
+        return new Result(kNeighbors, baselinePrediction, Math.sqrt(summedErrorSq / n), buildMillis, mean, p99);
+    }
+
+    /**
+     * Runs the sweep
+     * @param kValues the k to evaluate
+     * @param threads number of configurations evaluated at the same time
+     * @return one result per configuration, by k and then centring
+     */
+    public static List<Result> sweep(MovieHandler ratings, TestSet test, int[] kValues, int threads)
+            throws InterruptedException, ExecutionException {
+        int[] ks = kValues.clone();
+        Arrays.sort(ks);
+
+        // fitted lazily: fit it now, not in the first timed prediction of a configuration
+        ratings.getBaseline();
+
+        // one build with all neighbors, the neighbourhoods of every k are derived from its
+        // exact similarities. A build bounded by the largest k would not give the same
+        // neighbourhoods as the builds of the smaller ones, see PearsonsCorrelation(all, k)
+        long start = System.currentTimeMillis();
+        PearsonsCorrelation all = new PearsonsCorrelation(ratings, ratings.getNumUsers(), false);
+        long fullBuildMillis = System.currentTimeMillis() - start;
+        PearsonsCorrelation[] similarities = new PearsonsCorrelation[ks.length];
+        long[] buildMillis = new long[ks.length];
+        for (int i = 0; i < ks.length; i++) {
+            start = System.currentTimeMillis();
+            similarities[i] = new PearsonsCorrelation(all, ks[i]);
+            buildMillis[i] = fullBuildMillis + System.currentTimeMillis() - start;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (int i = 0; i < ks.length; i++) {
+                int k = ks[i];
+                long millis = buildMillis[i];
+                ModelGeneration model = new ModelGeneration(k, ratings, similarities[i]);
+                for (boolean baselinePrediction: new boolean[]{true, false}) {
+                    futures.add(pool.submit(() -> evaluate(model, k, baselinePrediction, millis, test)));
+                }
+            }
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future: futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String trainingFile = "";
+        String testFile = "";
+        String reportFile = null;
+        String kNeighbors = "10,20,50,100";
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean reorderUsers = false;
+
+        int i = 0;
+        while (i < args.length && args[i].startsWith("-")) {
+            String arg = args[i];
+            if(arg.equals("-trainingFile")) {
+                trainingFile = args[i+1];
+            } else if(arg.equals("-testFile")) {
+                testFile = args[i+1];
+            } else if(arg.equals("-reportFile")) {
+                reportFile = args[i+1];
+            } else if(arg.equals("-kNeighbors")) {
+                kNeighbors = args[i+1];
+            } else if(arg.equals("-threads")) {
+                threads = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-reorderUsers")) {
+                reorderUsers = true;
+                i--;  // flag without value
+            }
+            i += 2;
+        }
+
+        String[] tokens = kNeighbors.split(",");
+        int[] kValues = new int[tokens.length];
+        for (int t = 0; t < tokens.length; t++) {
+            kValues[t] = Integer.parseInt(tokens[t].trim());
+        }
+
+        MovieHandler ratings = new MovieHandler(trainingFile, reorderUsers);
+        TestSet test = new TestSet(testFile);
+        long start = System.currentTimeMillis();
+        System.out.println("Evaluating " + 2 * kValues.length + " configurations on " + test.size() + " ratings...");
+        List<Result> results = sweep(ratings, test, kValues, threads);
+        System.out.println("Done, took " + (System.currentTimeMillis() - start)/1000F + " seconds");
+        System.out.println("==========================");
+
+        StringBuilder report = new StringBuilder();
+        report.append(HEADER).append('\n');
+        for (Result result: results) {
+            report.append(result).append('\n');
+        }
+        System.out.print(report);
+        if (reportFile != null) {
+            try {
+                BufferedWriter bw = new BufferedWriter(new FileWriter(reportFile, false));
+                bw.write(report.toString());
+                bw.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,283 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Generates candidate user pairs for the correlation matrix, so Pearson's
+ * correlation only has to be computed for users that are likely to be similar
+ * instead of for all pairs.
+ *
+ * Every user gets a MinHash signature of bands * rows hashes over the set of
+ * movies the user rated. Two users whose signatures are identical on all rows of at
+ * least one band become a candidate pair. For two users with Jaccard
+ * similarity s between their rated movies, the probability of becoming a
+ * candidate is 1 - (1 - s^rows)^bands. Users with nothing in common never
+ * become candidates, their correlation is undefined anyway.
+ *
+ * That collision probability is what -lshCollisionProbability sets, for pairs at
+ * Jaccard similarity -lshSimilarity. It is not the recall of the neighbourhoods:
+ * the best neighbours by Pearson's correlation often have a low Jaccard similarity,
+ * so measure the recall with the report below.
+ *
+ * The MinHashLSH can be ran from the commandline to compare the approximate
+ * build against the exact one (recall of the neighbourhoods, RMSE and build time).
+ * Example command:
+ *      java -cp .:bin/ MinHashLSH -trainingFile data/ra.small.train -testFile data/ra.small.test -kNeighbors 50 -lshRows 2 -lshCollisionProbability 0.9 -lshSimilarity 0.1
+ */
+public class MinHashLSH {
+
+    /** Mersenne prime 2^31 - 1, modulus of the hash functions */
+    private static final long PRIME = (1L << 31) - 1;
+
+    private int bands;
+    private int rows;
+    /** candidate pairs in CSR layout: candidates of user u are candIDs[candOffsets[u]..candOffsets[u+1]),
+     * sorted, and always bigger than u (upper triangle, as in computeCorrMatrix) */
+    private int[] candOffsets;
+    private int[] candIDs;
+
+    /**
+     * Computes the signatures of all users and the resulting candidate pairs.
+     * @param ratings the training data
+     * @param bands number of bands
+     * @param rows number of rows (hashes) per band
+     * @param seed seed of the hash functions, so runs are reproducible
+     */
+    public MinHashLSH(MovieHandler ratings, int bands, int rows, long seed) {
+        this.bands = bands;
+        this.rows = rows;
+        long start = System.currentTimeMillis();
+        System.out.println("Computing MinHash candidates, bands=" + bands + ", rows=" + rows + "...");
+        int[][] signatures = computeSignatures(ratings, bands * rows, seed);
+        computeCandidates(signatures, ratings.getNumUsers());
+        long elapsedTimeMillis = System.currentTimeMillis() - start;
+        System.out.println("Done, " + getNumCandidates() + " candidate pairs, took " + elapsedTimeMillis/1000F + " seconds");
+        System.out.println("==========================");
+    }
+
+    /**
+     * Smallest number of bands for which a pair of users with the given Jaccard
+     * similarity becomes a candidate with at least the given probability.
+     * @param rows number of rows per band
+     * @param similarity Jaccard similarity of the rated movies
+     * @param probability target collision probability, below 1
+     * @return number of bands
+     */
+    public static int bandsForCollisionProbability(int rows, double similarity, double probability) {
+        double pBand = Math.pow(similarity, rows);  // probability that one band matches
+        if (pBand >= 1) return 1;
+        if (pBand <= 0) throw new IllegalArgumentException("Similarity must be positive");
+        return Math.max(1, (int) Math.ceil(Math.log(1 - probability) / Math.log(1 - pBand)));
+    }
+
+    /**
+     * Computes numHashes MinHash values for every user. Hash i is (a_i * movie + b_i) mod PRIME
+     * @return signature of each user, by internal id
+     */
+    private int[][] computeSignatures(MovieHandler ratings, int numHashes, long seed) {
+        Random random = new Random(seed);
+        long[] a = new long[numHashes];
+        long[] b = new long[numHashes];
+        for (int h = 0; h < numHashes; h++) {
+            a[h] = 1 + random.nextInt((int) PRIME - 1);
+            b[h] = random.nextInt((int) PRIME);
+        }
+        int N = ratings.getNumUsers();
+        int[][] signatures = new int[N][numHashes];
+        for (int u = 0; u < N; u++) {
+            int[] signature = signatures[u];
+            Arrays.fill(signature, Integer.MAX_VALUE);
+            List<MovieRating> userRatings = ratings.getUsersToRatings().get(ratings.getUserIDs().get(u));
+            for (MovieRating r: userRatings) {
+                long movie = r.getMovieID();
+                for (int h = 0; h < numHashes; h++) {
+                    int value = (int) ((a[h] * movie + b[h]) % PRIME);
+                    if (value < signature[h]) signature[h] = value;
+                }
+            }
+        }
+        return signatures;
+    }
+
+    /**
+     * Buckets the users on each band of their signature. Every pair of users that shares
+     * a bucket becomes a candidate. The buckets are kept per band, and the candidates are
+     * then collected one user at a time, so a pair found in several bands is dropped as
+     * soon as it is seen again: memory follows the distinct candidates, not the collisions.
+     */
+    private void computeCandidates(int[][] signatures, int N) {
+        // per band: the users grouped by bucket, increasing within a bucket, and for
+        // every user its position in there and the end of its bucket
+        int[][] members = new int[bands][N];
+        int[][] positions = new int[bands][N];
+        int[][] bucketEnds = new int[bands][N];
+        long[] buckets = new long[N];
+        for (int band = 0; band < bands; band++) {
+            // bucket key in the upper half, user in the lower half: sorting groups the buckets
+            for (int u = 0; u < N; u++) {
+                int hash = 1;
+                for (int r = band * rows; r < (band + 1) * rows; r++) {
+                    hash = 31 * hash + signatures[u][r];
+                }
+                buckets[u] = ((long) hash << 32) | u;
+            }
+            Arrays.sort(buckets);
+            int first = 0;
+            while (first < N) {
+                int last = first + 1;
+                while (last < N && (buckets[last] >>> 32) == (buckets[first] >>> 32)) last++;
+                for (int i = first; i < last; i++) {
+                    int u = (int) buckets[i];
+                    members[band][i] = u;
+                    positions[band][u] = i;
+                    bucketEnds[band][u] = last;
+                }
+                first = last;
+            }
+        }
+
+        this.candOffsets = new int[N + 1];
+        int[] ids = new int[1024];
+        int numCandidates = 0;
+        int[] lastSeenBy = new int[N];  // last u1 that took u2 as candidate
+        Arrays.fill(lastSeenBy, -1);
+        for (int u1 = 0; u1 < N; u1++) {
+            for (int band = 0; band < bands; band++) {
+                // users are sorted within a bucket, so the ones after u1 are bigger
+                for (int i = positions[band][u1] + 1; i < bucketEnds[band][u1]; i++) {
+                    int u2 = members[band][i];
+                    if (lastSeenBy[u2] == u1) continue;  // same pair found in an earlier band
+                    lastSeenBy[u2] = u1;
+                    if (numCandidates == ids.length) ids = Arrays.copyOf(ids, 2 * ids.length);
+                    ids[numCandidates++] = u2;
+                }
+            }
+            Arrays.sort(ids, this.candOffsets[u1], numCandidates);
+            this.candOffsets[u1 + 1] = numCandidates;
+        }
+        this.candIDs = Arrays.copyOf(ids, numCandidates);
+    }
+
+    /**
+     * @return index in getCandidateIDs of the first candidate of user u
+     */
+    public int getCandidatesStart(int u) {
+        return candOffsets[u];
+    }
+
+    /**
+     * @return index in getCandidateIDs after the last candidate of user u
+     */
+    public int getCandidatesEnd(int u) {
+        return candOffsets[u + 1];
+    }
+
+    /**
+     * @return internal ids of the candidates of all users, see getCandidatesStart
+     */
+    public int[] getCandidateIDs() {
+        return candIDs;
+    }
+
+    public int getNumCandidates() {
+        return candIDs.length;
+    }
+
+    /**
+     * Fraction of the neighbors in the exact neighbourhoods that were also found
+     * by the approximate build
+     */
+    static double neighborhoodRecall(PearsonsCorrelation exact, PearsonsCorrelation approx, int N) {
+        long found = 0, total = 0;
+        for (int u = 0; u < N; u++) {
+            CompactNeighborhood exactHood = exact.getCompactNeighborhood(u);
+            if (exactHood == null) continue;
+            CompactNeighborhood approxHood = approx.getCompactNeighborhood(u);
+            total += exactHood.size();
+            if (approxHood == null) continue;
+            // both cursors go by increasing id: merge them
+            CompactNeighborhood.Cursor e = exactHood.cursor();
+            CompactNeighborhood.Cursor a = approxHood.cursor();
+            boolean more = a.next();
+            while (more && e.next()) {
+                while (more && a.getUserID() < e.getUserID()) more = a.next();
+                if (more && a.getUserID() == e.getUserID()) found++;
+            }
+        }
+        return (total == 0) ? 1 : (double) found / total;
+    }
+
+    public static void main(String[] args) {
+        String trainingFile = "";
+        String testFile = null;
+        String reportFile = null;
+        int kNeighbors = 0;
+        int rows = 2;
+        int bands = 0;
+        double probability = 0.9;
+        double similarity = 0.1;
+
+        int i = 0;
+        while (i < args.length && args[i].startsWith("-")) {
+            String arg = args[i];
+            if(arg.equals("-trainingFile")) {
+                trainingFile = args[i+1];
+            } else if(arg.equals("-testFile")) {
+                testFile = args[i+1];
+            } else if(arg.equals("-reportFile")) {
+                reportFile = args[i+1];
+            } else if(arg.equals("-kNeighbors")) {
+                kNeighbors = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-lshRows")) {
+                rows = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-lshBands")) {
+                bands = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-lshCollisionProbability")) {
+                probability = Double.parseDouble(args[i+1]);
+            } else if(arg.equals("-lshSimilarity")) {
+                similarity = Double.parseDouble(args[i+1]);
+            }
+            i += 2;
+        }
+        if (bands <= 0) bands = bandsForCollisionProbability(rows, similarity, probability);
+
+        MovieHandler ratings = new MovieHandler(trainingFile);
+        int N = ratings.getNumUsers();
+        int k = (kNeighbors > 0) ? kNeighbors : N;
+
+        long start = System.currentTimeMillis();
+        PearsonsCorrelation exact = new PearsonsCorrelation(ratings, k);
+        long exactTime = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        MinHashLSH lsh = new MinHashLSH(ratings, bands, rows, 42);
+        PearsonsCorrelation approx = new PearsonsCorrelation(ratings, k, lsh);
+        long approxTime = System.currentTimeMillis() - start;
+
+        StringBuilder report = new StringBuilder();
+        report.append("bands=").append(bands).append(",rows=").append(rows)
+                .append(",kNeighbors=").append(k).append('\n');
+        report.append("candidate pairs: ").append(lsh.getNumCandidates())
+                .append(" of ").append((long) N * (N - 1) / 2).append('\n');
+        report.append("neighbourhood recall: ").append(neighborhoodRecall(exact, approx, N)).append('\n');
+        report.append("build time (exact): ").append(exactTime / 1000F).append(" s\n");
+        report.append("build time (lsh): ").append(approxTime / 1000F).append(" s\n");
+        if (testFile != null) {
+            report.append("RMSE (exact): ")
+                    .append(MovieRunner.evaluate(new ModelGeneration(0, ratings, exact), testFile)).append('\n');
+            report.append("RMSE (lsh): ")
+                    .append(MovieRunner.evaluate(new ModelGeneration(1, ratings, approx), testFile)).append('\n');
+        }
+        System.out.print(report);
+        if (reportFile != null) {
+            try {
+                BufferedWriter bw = new BufferedWriter(new FileWriter(reportFile, false));
+                bw.write(report.toString());
+                bw.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
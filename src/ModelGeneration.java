@@ -0,0 +1,141 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable snapshot of everything a prediction needs: the ratings and the
+ * neighbourhoods that were computed from them. A generation is never
+ * modified once it is published, so a new model is loaded by building a
+ * new generation next to the old one and swapping the reference.
+ *
+ * Predictions register themselves with {@link #acquire()} and
+ * {@link #release()}, which allows the loader to wait until all in-flight
+ * requests on a retired generation are done before dropping it.
+ *
+ * A generation can have a cache of its predictions, which is dropped with it.
+ *
+ * The MovieHandler of a generation is not updated either. A RatingStream updates
+ * a MovieHandler of its own, a snapshot of which is published as a new generation
+ * with the neighbourhoods computed on it (see MovieRunner.publishRatings).
+ */
+public final class ModelGeneration {
+
+    private final long number;
+    private final MovieHandler ratings;
+    private final PearsonsCorrelation similarities;
+    private final PredictionCache predictions;  // null if predictions are not cached
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile boolean retired = false;
+
+    public ModelGeneration(long number, MovieHandler ratings, PearsonsCorrelation similarities) {
+        this(number, ratings, similarities, 0);
+    }
+
+    /**
+     * @param cacheSize max number of cached predictions, 0 to not cache them
+     */
+    public ModelGeneration(long number, MovieHandler ratings, PearsonsCorrelation similarities, int cacheSize) {
+        this.number = number;
+        this.ratings = ratings;
+        this.similarities = similarities;
+        this.predictions = (cacheSize > 0) ? new PredictionCache(cacheSize) : null;
+    }
+
+    /**
+     * Loads a new generation from a training file and a precomputed matrix file.
+     * @param number sequence number of the generation
+     * @throws IOException if a file is missing or the loaded model is not usable, see validate()
+     */
+    public static ModelGeneration load(long number, String trainingFile, String matrixFile) throws IOException {
+        return load(number, trainingFile, matrixFile, 0);
+    }
+
+    /**
+     * Same as previous method, with a prediction cache
+     * @param cacheSize max number of cached predictions, 0 to not cache them
+     */
+    public static ModelGeneration load(long number, String trainingFile, String matrixFile, int cacheSize)
+            throws IOException {
+        // the readers only print their IOExceptions: check the files first
+        if (!new File(trainingFile).isFile()) throw new FileNotFoundException(trainingFile);
+        if (!new File(matrixFile).isFile()) throw new FileNotFoundException(matrixFile);
+        MovieHandler ratings = new MovieHandler(trainingFile);
+        PearsonsCorrelation similarities = new PearsonsCorrelation(ratings, matrixFile);
+        ModelGeneration generation = new ModelGeneration(number, ratings, similarities, cacheSize);
+        generation.validate();
+        return generation;
+    }
+
+    /**
+     * Checks that the generation can serve predictions: it has ratings, and a
+     * neighbourhood slot for every user of the ratings
+     * @throws IOException if it can't, e.g. the matrix was computed on other ratings
+     */
+    public void validate() throws IOException {
+        if (ratings.getNumUsers() == 0)
+            throw new IOException("Generation " + number + " has no ratings");
+        if (similarities.getNumUsers() != ratings.getNumUsers())
+            throw new IOException("Generation " + number + ": the matrix has " + similarities.getNumUsers()
+                    + " users, the ratings " + ratings.getNumUsers());
+    }
+
+    public long getNumber() {
+        return number;
+    }
+
+    public MovieHandler getRatings() {
+        return ratings;
+    }
+
+    public PearsonsCorrelation getSimilarities() {
+        return similarities;
+    }
+
+    /**
+     * @return the prediction cache, null if predictions are not cached
+     */
+    public PredictionCache getPredictionCache() {
+        return predictions;
+    }
+
+    /**
+     * Registers a request running against this generation
+     */
+    void acquire() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Marks the end of a request started with acquire()
+     */
+    void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * @return number of requests currently running against this generation
+     */
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Marks the generation as dropped: it was swapped out and its requests are done
+     */
+    void retire() {
+        retired = true;
+    }
+
+    /**
+     * @return true once the generation was swapped out and drained
+     */
+    boolean isRetired() {
+        return retired;
+    }
+
+    @Override
+    public String toString() {
+        return "[Generation: " + number + ", users: " + ratings.getNumUsers() + "]";
+    }
+}
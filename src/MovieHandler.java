@@ -2,12 +2,12 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * The MovieHandler reads the MovieLens data and constructs several mappings:
@@ -19,11 +19,22 @@ import java.util.Set;
  *       maps the true user ID to a list of movie ratings
  *
  * Constructing these mappings once avoids an indexOf lookup for every
- * movie/user.
+ * movie/user. True to internal ID lookups use binary search on sorted arrays.
  *
  * The internal IDs are introduced to make sure that the IDs nicely go from
  * 0 to num_users or num_movies and such that the same mapping is used for
  * identical inputs.
+ *
+ * By default internal user IDs follow the sorted true IDs. Optionally, users
+ * are reordered such that users who rated the same movies get close internal
+ * IDs (see reorderUsers), which improves cache locality when going over the
+ * users in order of internal ID. The position of a user in the sorted true IDs
+ * is then still available as its "sorted index", which is used in all files.
+ *
+ * Ratings can be added or updated after loading with putRating (see
+ * RatingStream). Such updates are not thread safe: a MovieHandler that is
+ * updated must not be read by other threads at the same time. Predictions
+ * read a snapshot() of it instead.
  *  
  * @author Toon Van Craenendonck
  * @author Pieter Robberechts
@@ -37,8 +48,21 @@ public class MovieHandler {
 
     private ArrayList<Integer> movieIDs;
     private ArrayList<Integer> userIDs;
+    private int[] movieIDArray;     // same as movieIDs, unboxed for binary search
+    private int[] sortedUserIDs;    // true user IDs, sorted, for binary search
+    private int[] sortedToInternal; // sorted index to internal ID, null if users are not reordered
+    private int[] internalToSorted; // internal ID to sorted index, null if users are not reordered
+
+    private double[] movieAverageRatings;   // by internal movie ID
+    private double[] movieRatingSums;       // by internal movie ID, to update the averages
+    private int[] movieRatingCounts;        // by internal movie ID
+    private double[] userRatingSums;        // by internal user ID, to update the averages
 
-    private Map<Integer, Double> movieAverageRatings; 
+    /** movies added by putRating that get an internal ID at the next commitRatings: true ID to {sum, count} */
+    private Map<Integer, double[]> pendingMovies = new HashMap<Integer, double[]>();
+    private boolean pendingUsers = false;
+    private volatile BaselinePredictor baseline;  // fitted on first use
+    private volatile RatingsByMovie ratingsByMovie;  // built on first use, dropped when the ratings change
 
     static double DEFAULT_RATING = 2.5; 
 
@@ -51,15 +75,52 @@ public class MovieHandler {
      * @param fileName name of file containing the ratings
      */
     public MovieHandler(String fileName) {
+        this(fileName, false);
+    }
+
+    /**
+     * Create a new MovieHandler, optionally reordering the users for locality.
+     *
+     * @param fileName name of file containing the ratings
+     * @param reorderUsers true to give users with overlapping ratings adjacent internal IDs
+     */
+    public MovieHandler(String fileName, boolean reorderUsers) {
         this.ratingFile = fileName;
 
         long startTime = System.currentTimeMillis();
         System.out.println("Reading data.. ");
         this.readData();
+        if (reorderUsers) this.reorderUsers();
+        // precompute average ratings for each movie
+        computeMovieAverageRatings();
+        computeUserRatingSums();
         System.out.println("done, took " +  (System.currentTimeMillis() - startTime)/1000.0 + "seconds.");
         System.out.println("--------------");
     }
 
+    /**
+     * Copies the ratings, the ID mappings and the averages of source, see snapshot().
+     * The MovieRating objects are shared, they are never changed (putRating
+     * replaces them).
+     */
+    private MovieHandler(MovieHandler source) {
+        this.ratingFile = source.ratingFile;
+        this.usersToRatings = new HashMap<Integer, List<MovieRating>>(2 * source.usersToRatings.size());
+        for (Map.Entry<Integer, List<MovieRating>> e : source.usersToRatings.entrySet()) {
+            this.usersToRatings.put(e.getKey(), new ArrayList<MovieRating>(e.getValue()));
+        }
+        this.movieIDs = new ArrayList<Integer>(source.movieIDs);
+        this.userIDs = new ArrayList<Integer>(source.userIDs);
+        this.movieIDArray = source.movieIDArray.clone();
+        this.sortedUserIDs = source.sortedUserIDs.clone();
+        this.sortedToInternal = (source.sortedToInternal == null) ? null : source.sortedToInternal.clone();
+        this.internalToSorted = (source.internalToSorted == null) ? null : source.internalToSorted.clone();
+        this.movieAverageRatings = source.movieAverageRatings.clone();
+        this.movieRatingSums = source.movieRatingSums.clone();
+        this.movieRatingCounts = source.movieRatingCounts.clone();
+        this.userRatingSums = Arrays.copyOf(source.userRatingSums, source.userIDs.size());
+    }
+
     /**
      * Returns internal ID to true ID mapping.
      *
@@ -69,32 +130,104 @@ public class MovieHandler {
         return userIDs;
     }
 
+    /**
+     * Returns internal ID to true ID mapping of the movies, sorted by true ID.
+     *
+     * @return the mapping
+     */
+    public int[] getMovieIDArray() {
+        return movieIDArray;
+    }
+
+    /**
+     * Looks up the internal ID of a user
+     * @param userID true user ID
+     * @return the internal ID, negative if the user is not in the data
+     */
+    public int getInternalUserID(int userID) {
+        int index = Arrays.binarySearch(sortedUserIDs, userID);
+        if (index < 0) return -1;
+        return (sortedToInternal == null) ? index : sortedToInternal[index];
+    }
+
+    /**
+     * Returns the position of a user in the sorted true IDs. Same as the internal ID,
+     * unless the users were reordered.
+     * @param user internal ID
+     * @return the sorted index
+     */
+    public int toSortedIndex(int user) {
+        return (internalToSorted == null) ? user : internalToSorted[user];
+    }
+
+    /**
+     * Inverse of toSortedIndex
+     * @param index position of the user in the sorted true IDs
+     * @return the internal ID
+     */
+    public int fromSortedIndex(int index) {
+        return (sortedToInternal == null) ? index : sortedToInternal[index];
+    }
+
+    /**
+     * @return true if internal user IDs do not follow the sorted true IDs
+     */
+    public boolean isReordered() {
+        return sortedToInternal != null;
+    }
+
+    /**
+     * Looks up the internal ID of a movie
+     * @param movieID true movie ID
+     * @return the internal ID, negative if the movie is not in the data
+     */
+    public int getInternalMovieID(int movieID) {
+        int index = Arrays.binarySearch(movieIDArray, movieID);
+        return (index < 0) ? -1 : index;
+    }
+
     /**
      * Reads the MovieLens data into a map, mapping user IDs to lists of movie
      * ratings and creates internal to true ID mappings for users and movies.
      */
     private void readData() {
-        Set<Integer> movieSet = new HashSet<Integer>();
+        // bitmap of the movie IDs: no boxing per line
+        BitSet movieSet = new BitSet();
 
         BufferedReader br;
         try {
             br = new BufferedReader(new FileReader(ratingFile));
             String line;
+            // ratings of the same user are on consecutive lines: avoids a map lookup per line
+            int lastUserID = -1;
+            List<MovieRating> ratingList = null;
             while ((line = br.readLine()) != null) {
-                String[] tokens = line.split("::|\t");
+                // fields are parsed in place, splitting would allocate an array and a string per field
+                int userEnd = fieldEnd(line, 0);
+                int movieStart = nextField(line, userEnd);
+                int movieEnd = fieldEnd(line, movieStart);
+                int ratingStart = nextField(line, movieEnd);
+                int ratingEnd = fieldEnd(line, ratingStart);
 
-                int userID = Integer.parseInt(tokens[0]);
-                int movieID = Integer.parseInt(tokens[1]);
-                double rating = Double.parseDouble(tokens[2]);
+                int userID = parseInt(line, 0, userEnd);
+                int movieID = parseInt(line, movieStart, movieEnd);
+                double rating = parseRating(line, ratingStart, ratingEnd);
+                long timestamp = 0;
+                if (ratingEnd < line.length()) {
+                    int timestampStart = nextField(line, ratingEnd);
+                    timestamp = parseLong(line, timestampStart, fieldEnd(line, timestampStart));
+                }
 
-                movieSet.add(movieID);
-                if (!usersToRatings.containsKey(userID)) {
-                    List<MovieRating> ratingList = new ArrayList<MovieRating>();
-                    ratingList.add(new MovieRating(movieID, rating));
-                    usersToRatings.put(userID, ratingList);
-                } else {
-                    usersToRatings.get(userID).add(new MovieRating(movieID, rating));
+                movieSet.set(movieID);
+                if (userID != lastUserID) {
+                    lastUserID = userID;
+                    ratingList = usersToRatings.get(userID);
+                    if (ratingList == null) {
+                        ratingList = new ArrayList<MovieRating>();
+                        usersToRatings.put(userID, ratingList);
+                    }
                 }
+                ratingList.add(new MovieRating(movieID, rating, timestamp));
             }
             br.close();
         } catch (IOException e) {
@@ -105,24 +238,247 @@ public class MovieHandler {
         userIDs = new ArrayList<Integer>(usersToRatings.keySet());
         Collections.sort(userIDs);
 
-        // same for movie ids
-        movieIDs = new ArrayList<Integer>(movieSet);
-        Collections.sort(movieIDs);
+        // same for movie ids (a BitSet is already sorted)
+        movieIDs = new ArrayList<Integer>(movieSet.cardinality());
+        for (int movieID = movieSet.nextSetBit(0); movieID >= 0; movieID = movieSet.nextSetBit(movieID + 1)) {
+            movieIDs.add(movieID);
+        }
+
+        sortedUserIDs = toArray(userIDs);
+        movieIDArray = toArray(movieIDs);
+    }
 
-        // precompute average ratings for each movie
-        computeMovieAverageRatings(); 
+    /**
+     * Reorders the internal user IDs with the Reverse Cuthill-McKee algorithm on the
+     * bipartite graph of users and the movies they rated: a breadth first search that
+     * alternates between users and movies, visiting neighbors with few ratings first,
+     * starting from a user with the fewest ratings. Users that rated the same movies
+     * are visited close to each other. Runs in O(#ratings log #ratings).
+     *
+     * The rating lists are copied in the new order, so users with adjacent internal IDs
+     * also have their ratings close to each other in memory.
+     */
+    private void reorderUsers() {
+        long start = System.currentTimeMillis();
+        int N = sortedUserIDs.length;
+        int M = movieIDArray.length;
+
+        // adjacency lists, by sorted index and internal movie ID. Internal user IDs
+        // are the sorted indices until the users are reordered
+        int[][] userMovies = new int[N][];
+        for (int u = 0; u < N; u++) {
+            List<MovieRating> userRatings = usersToRatings.get(sortedUserIDs[u]);
+            userMovies[u] = new int[userRatings.size()];
+            for (int i = 0; i < userMovies[u].length; i++) {
+                userMovies[u][i] = getInternalMovieID(userRatings.get(i).getMovieID());
+            }
+        }
+        RatingsByMovie byMovie = new RatingsByMovie(this);
+        int[] movieUsers = byMovie.getUsers().clone();  // sorted below, the index itself is dropped
+        int[] movieDegree = new int[M];
+        for (int m = 0; m < M; m++) {
+            movieDegree[m] = byMovie.getEnd(m) - byMovie.getStart(m);
+        }
+        // neighbors with the lowest degree first
+        for (int u = 0; u < N; u++) {
+            sortByDegree(userMovies[u], movieDegree);
+        }
+        int[] userDegree = new int[N];
+        for (int u = 0; u < N; u++) {
+            userDegree[u] = userMovies[u].length;
+        }
+        for (int m = 0; m < M; m++) {
+            sortByDegree(movieUsers, byMovie.getStart(m), byMovie.getEnd(m), userDegree);
+        }
+        Integer[] starts = new Integer[N];
+        for (int u = 0; u < N; u++) {
+            starts[u] = u;
+        }
+        Arrays.sort(starts, (u1, u2) -> Integer.compare(userDegree[u1], userDegree[u2]));
+
+        // breadth first search, one component at a time. The queue holds users as
+        // their index and movies as -(movie + 1)
+        int[] order = new int[N];
+        int ordered = 0;
+        boolean[] userSeen = new boolean[N];
+        boolean[] movieSeen = new boolean[M];
+        int[] queue = new int[N + M];
+        for (int startUser: starts) {
+            if (userSeen[startUser]) continue;
+            int head = 0, tail = 0;
+            queue[tail++] = startUser;
+            userSeen[startUser] = true;
+            while (head < tail) {
+                int node = queue[head++];
+                if (node >= 0) {
+                    order[ordered++] = node;
+                    for (int movie: userMovies[node]) {
+                        if (!movieSeen[movie]) {
+                            movieSeen[movie] = true;
+                            queue[tail++] = -(movie + 1);
+                        }
+                    }
+                } else {
+                    int movie = -node - 1;
+                    for (int p = byMovie.getStart(movie); p < byMovie.getEnd(movie); p++) {
+                        int u = movieUsers[p];
+                        if (!userSeen[u]) {
+                            userSeen[u] = true;
+                            queue[tail++] = u;
+                        }
+                    }
+                }
+            }
+        }
+
+        // reverse, and carry the permutation through the ID maps
+        sortedToInternal = new int[N];
+        internalToSorted = new int[N];
+        userIDs = new ArrayList<Integer>(N);
+        Map<Integer, List<MovieRating>> reordered = new HashMap<Integer, List<MovieRating>>(2 * N);
+        for (int internal = 0; internal < N; internal++) {
+            int sorted = order[N - 1 - internal];
+            sortedToInternal[sorted] = internal;
+            internalToSorted[internal] = sorted;
+            int userID = sortedUserIDs[sorted];
+            userIDs.add(userID);
+            List<MovieRating> copy = new ArrayList<MovieRating>(usersToRatings.get(userID).size());
+            for (MovieRating r: usersToRatings.get(userID)) {
+                copy.add(new MovieRating(r.getMovieID(), r.getRating(), r.getTimestamp()));
+            }
+            reordered.put(userID, copy);
+        }
+        usersToRatings = reordered;
+        System.out.println("Reordered users, took " + (System.currentTimeMillis() - start)/1000.0 + " seconds.");
+    }
+
+    /**
+     * Sorts node IDs by increasing degree
+     */
+    private static void sortByDegree(int[] nodes, int[] degree) {
+        sortByDegree(nodes, 0, nodes.length, degree);
+    }
+
+    /**
+     * Sorts the node IDs from (inclusive) to to (exclusive) by increasing degree
+     */
+    private static void sortByDegree(int[] nodes, int from, int to, int[] degree) {
+        long[] keys = new long[to - from];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ((long) degree[nodes[from + i]] << 32) | nodes[from + i];
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < keys.length; i++) {
+            nodes[from + i] = (int) keys[i];
+        }
+    }
+
+    /**
+     * @return index of the separator ("::" or tab) after the field starting at start,
+     * or the end of the line
+     */
+    private static int fieldEnd(String line, int start) {
+        int i = start;
+        while (i < line.length() && line.charAt(i) != ':' && line.charAt(i) != '\t') i++;
+        return i;
+    }
+
+    /**
+     * @return start of the field after the separator at end
+     */
+    private static int nextField(String line, int end) {
+        return (end < line.length() && line.charAt(end) == ':') ? end + 2 : end + 1;
+    }
+
+    private static int parseInt(String line, int start, int end) {
+        if (start >= end) throw new NumberFormatException("Empty field in: " + line);
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = line.charAt(i) - '0';
+            if (digit < 0 || digit > 9) throw new NumberFormatException("Not an integer in: " + line);
+            value = 10 * value + digit;
+        }
+        return value;
+    }
+
+    private static long parseLong(String line, int start, int end) {
+        if (start >= end) throw new NumberFormatException("Empty field in: " + line);
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = line.charAt(i) - '0';
+            if (digit < 0 || digit > 9) throw new NumberFormatException("Not an integer in: " + line);
+            value = 10 * value + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Parses ratings like 4 or 3.5. Anything else goes through Double.parseDouble
+     */
+    private static double parseRating(String line, int start, int end) {
+        int dot = line.indexOf('.', start);
+        if (dot < 0 || dot >= end) return parseInt(line, start, end);
+        if (end - dot != 2 || dot == start) return Double.parseDouble(line.substring(start, end));
+        return parseInt(line, start, dot) + parseInt(line, dot + 1, end) / 10.0;
+    }
+
+    private static int[] toArray(List<Integer> ids) {
+        int[] array = new int[ids.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = ids.get(i);
+        }
+        return array;
     }
 
     /** 
      * Fetch the average movie rating from the cache.
      * @see computeMovieAverageRatings()
      */ 
-    public double getMovieAverageRating(Integer movieID) {
-        if (movieAverageRatings.containsKey(movieID))
-            return movieAverageRatings.get(movieID);
+    public double getMovieAverageRating(int movieID) {
+        int movie = getInternalMovieID(movieID);
+        if (movie >= 0)
+            return movieAverageRatings[movie];
         return DEFAULT_RATING;
     }
 
+    /**
+     * Returns the baseline predictor (global mean plus user and movie biases),
+     * fitted on the ratings at the first call. Callers that only use the user
+     * means don't pay for the fit.
+     */
+    public BaselinePredictor getBaseline() {
+        BaselinePredictor fitted = baseline;
+        if (fitted == null) {
+            synchronized (this) {
+                fitted = baseline;
+                if (fitted == null) {
+                    fitted = new BaselinePredictor(this);
+                    baseline = fitted;
+                }
+            }
+        }
+        return fitted;
+    }
+
+    /**
+     * Returns the ratings indexed by movie, built at the first call after loading
+     * or after the ratings changed. The index is not updated afterwards: callers
+     * that keep it see the ratings at the time it was built.
+     */
+    public RatingsByMovie getRatingsByMovie() {
+        RatingsByMovie index = ratingsByMovie;
+        if (index == null) {
+            synchronized (this) {
+                index = ratingsByMovie;
+                if (index == null) {
+                    index = new RatingsByMovie(this);
+                    ratingsByMovie = index;
+                }
+            }
+        }
+        return index;
+    }
+
     /**
      * Returns the user to movie mapping. External IDs are used here.
      * @return the mappings
@@ -151,29 +507,197 @@ public class MovieHandler {
      * Computes and caches movies average ratings. 
      */
     private void computeMovieAverageRatings() {
-        movieAverageRatings = new HashMap<Integer, Double>(); 
+        int M = movieIDArray.length;
+        movieAverageRatings = new double[M];
+        movieRatingSums = new double[M];
+        movieRatingCounts = new int[M];
 
-        Map<Integer, Double> ratingSum = new HashMap<Integer, Double>();
-        Map<Integer, Integer> ratingCount = new HashMap<Integer, Integer>();
+        for (List<MovieRating> userRatings : usersToRatings.values()) {
+            for (MovieRating r : userRatings) {
+                int movie = getInternalMovieID(r.getMovieID());
+                movieRatingSums[movie] += r.getRating();
+                movieRatingCounts[movie]++;
+            }
+        }
 
-        for(Integer userID : userIDs) {
-            for (MovieRating r : usersToRatings.get(userID)) {
-                if (! ratingSum.containsKey(r.getMovieID())) {
-                    ratingSum.put(r.getMovieID(), r.getRating()); 
-                    ratingCount.put(r.getMovieID(), 1); 
-                } else {
-                    ratingSum.put(r.getMovieID(), (ratingSum.get(r.getMovieID()) + r.getRating())); 
-                    ratingCount.put(r.getMovieID(), ratingCount.get(r.getMovieID()) + 1);
+        for (int movie = 0; movie < M; movie++) {
+            movieAverageRatings[movie] = movieRatingSums[movie] / movieRatingCounts[movie];
+        }
+    }
+
+    /**
+     * Computes the sum of the ratings of each user, kept up to date by putRating
+     */
+    private void computeUserRatingSums() {
+        userRatingSums = new double[userIDs.size()];
+        for (int user = 0; user < userRatingSums.length; user++) {
+            for (MovieRating r : usersToRatings.get(userIDs.get(user))) {
+                userRatingSums[user] += r.getRating();
+            }
+        }
+    }
+
+    /**
+     * Returns the average rating of a user
+     * @param user internal ID
+     * @return the average rating
+     */
+    public double getUserAverageRating(int user) {
+        return userRatingSums[user] / usersToRatings.get(userIDs.get(user)).size();
+    }
+
+    /**
+     * Adds a rating, or replaces the rating the user gave to the movie before, and
+     * updates the user and movie averages. New users get the next internal ID right
+     * away, new movies get an internal ID at the next commitRatings. The ID lookups
+     * are only up to date again after commitRatings.
+     *
+     * An update that is older than the stored rating (e.g. it arrives late, in a
+     * later batch of the log) is ignored. Ratings with the same timestamp replace
+     * each other.
+     *
+     * @param userID true user ID
+     * @param movieID true movie ID
+     * @param rating the new rating
+     * @param timestamp time of the rating, in seconds since the epoch
+     * @return the rating that was replaced, null if the user had not rated the movie.
+     * If the update is ignored, the stored rating, which is more recent than timestamp.
+     */
+    public MovieRating putRating(int userID, int movieID, double rating, long timestamp) {
+        List<MovieRating> userRatings = usersToRatings.get(userID);
+        int index = -1;
+        if (userRatings != null) {
+            for (int i = 0; i < userRatings.size(); i++) {
+                if (userRatings.get(i).getMovieID() == movieID) {
+                    index = i;
+                    break;
                 }
             }
+            if (index >= 0 && userRatings.get(index).getTimestamp() > timestamp) {
+                return userRatings.get(index);  // stale update
+            }
+        }
+
+        int user;
+        if (userRatings == null) {
+            user = userIDs.size();
+            userIDs.add(userID);
+            userRatings = new ArrayList<MovieRating>();
+            usersToRatings.put(userID, userRatings);
+            if (user == userRatingSums.length) userRatingSums = Arrays.copyOf(userRatingSums, 2 * user + 1);
+            pendingUsers = true;
+        } else {
+            user = getInternalUserID(userID);
+            // added since the last commit: not in the lookup yet, but at the end of userIDs
+            if (user < 0) user = userIDs.lastIndexOf(userID);
+        }
+
+        ratingsByMovie = null;
+        MovieRating previous = null;
+        if (index >= 0) {
+            previous = userRatings.get(index);
+            userRatings.set(index, new MovieRating(movieID, rating, timestamp));
+        } else {
+            userRatings.add(new MovieRating(movieID, rating, timestamp));
         }
+        double delta = (previous == null) ? rating : rating - previous.getRating();
+        userRatingSums[user] += delta;
 
-        for (Map.Entry<Integer, Double> entry : ratingSum.entrySet()) {
-            int movieID = entry.getKey(); 
-            double avg = entry.getValue() / ratingCount.get(movieID);
+        int movie = getInternalMovieID(movieID);
+        if (movie >= 0) {
+            movieRatingSums[movie] += delta;
+            if (previous == null) movieRatingCounts[movie]++;
+            movieAverageRatings[movie] = movieRatingSums[movie] / movieRatingCounts[movie];
+        } else {
+            double[] sumCount = pendingMovies.get(movieID);
+            if (sumCount == null) {
+                sumCount = new double[2];
+                pendingMovies.put(movieID, sumCount);
+            }
+            sumCount[0] += delta;
+            if (previous == null) sumCount[1]++;
+        }
+        return previous;
+    }
 
-            movieAverageRatings.put(movieID, avg);
+    /**
+     * Brings the ID lookups up to date after a batch of putRating calls: users added
+     * since the last commit are looked up by their new internal IDs, and new movies
+     * get their place in the sorted movie IDs (which shifts the internal IDs of the
+     * movies after them). A baseline that was fitted already keeps its biases, new
+     * users and movies get a bias of 0.
+     */
+    public void commitRatings() {
+        ratingsByMovie = null;
+        if (pendingUsers) {
+            int N = userIDs.size();
+            userRatingSums = Arrays.copyOf(userRatingSums, N);
+            long[] sorted = new long[N];  // true ID in the upper half, internal ID in the lower half
+            for (int user = 0; user < N; user++) {
+                sorted[user] = ((long) userIDs.get(user) << 32) | user;
+            }
+            Arrays.sort(sorted);
+            int[] oldToSorted = internalToSorted;
+            sortedUserIDs = new int[N];
+            sortedToInternal = new int[N];
+            internalToSorted = new int[N];
+            boolean identity = (oldToSorted == null);
+            for (int index = 0; index < N; index++) {
+                sortedUserIDs[index] = (int) (sorted[index] >>> 32);
+                sortedToInternal[index] = (int) sorted[index];
+                internalToSorted[(int) sorted[index]] = index;
+                identity = identity && sortedToInternal[index] == index;
+            }
+            if (identity) {  // all new users came after the existing ones
+                sortedToInternal = null;
+                internalToSorted = null;
+            }
+            pendingUsers = false;
         }
+        if (!pendingMovies.isEmpty()) {
+            int M = movieIDArray.length + pendingMovies.size();
+            int[] oldIDs = movieIDArray;
+            double[] oldSums = movieRatingSums;
+            int[] oldCounts = movieRatingCounts;
+            for (Integer movieID : pendingMovies.keySet()) {
+                movieIDs.add(movieID);
+            }
+            Collections.sort(movieIDs);
+            movieIDArray = toArray(movieIDs);
+            movieRatingSums = new double[M];
+            movieRatingCounts = new int[M];
+            movieAverageRatings = new double[M];
+            for (int movie = 0; movie < M; movie++) {
+                int movieID = movieIDArray[movie];
+                int old = Arrays.binarySearch(oldIDs, movieID);
+                if (old >= 0) {
+                    movieRatingSums[movie] = oldSums[old];
+                    movieRatingCounts[movie] = oldCounts[old];
+                } else {
+                    double[] sumCount = pendingMovies.get(movieID);
+                    movieRatingSums[movie] = sumCount[0];
+                    movieRatingCounts[movie] = (int) sumCount[1];
+                }
+                movieAverageRatings[movie] = movieRatingSums[movie] / movieRatingCounts[movie];
+            }
+            pendingMovies.clear();
+        }
+    }
+
+    /**
+     * Copies the ratings into a new MovieHandler that shares nothing that putRating
+     * or commitRatings change, so it can be published as a new generation while
+     * this one keeps being updated (see MovieRunner.publishRatings). Takes
+     * O(#ratings). Must be called by the thread that updates this MovieHandler.
+     * The baseline of the copy is fitted on its first use.
+     *
+     * @return the copy
+     * @throws IllegalStateException if some ratings were not committed yet
+     */
+    public MovieHandler snapshot() {
+        if (pendingUsers || !pendingMovies.isEmpty())
+            throw new IllegalStateException("Ratings were added since the last commitRatings");
+        return new MovieHandler(this);
     }
 
 
@@ -0,0 +1,207 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Optional movie metadata: the titles and genres of the MovieLens movies file
+ *      movieID::Title (Year)::Genre1|Genre2|...
+ *
+ * Genres are indexed as bitsets over the internal movie IDs (bit m of word m / 64),
+ * so the candidates of a query like "unseen comedies" are found with a few word-wise
+ * AND/OR over the bitsets, before any movie is scored. See candidates().
+ *
+ * The ratings by movie of the MovieHandler (see RatingsByMovie) give the users that
+ * rated each movie, so the candidates can be scored by looking at their own ratings
+ * only, see MovieRunner.recommend.
+ *
+ * The metadata keeps the movies and ratings of the MovieHandler at the time of
+ * loading. Ratings that are added later (see MovieHandler.commitRatings) are not
+ * indexed; load a new MovieMetadata to include them.
+ */
+public class MovieMetadata {
+
+    /** genre of the movies without genres in MovieLens, not indexed */
+    static final String NO_GENRES = "(no genres listed)";
+
+    private final MovieHandler ratings;
+    private final int[] movieIDs;       // internal to true movie ID, sorted, when loaded
+    private final int numWords;         // length of the bitsets
+    private final String[] titles;      // by internal movie ID, null if not in the movies file
+    private final Map<String, long[]> genres = new TreeMap<>();
+
+    private final RatingsByMovie raters;    // over the same movies as movieIDs
+
+    /**
+     * Index without titles nor genres: only filters out the movies a user has seen
+     */
+    public MovieMetadata(MovieHandler ratings) {
+        this.ratings = ratings;
+        this.movieIDs = ratings.getMovieIDArray();
+        this.numWords = (movieIDs.length + 63) / 64;
+        this.titles = new String[movieIDs.length];
+        this.raters = ratings.getRatingsByMovie();
+    }
+
+    /**
+     * Reads the movies file. Movies without ratings are skipped.
+     * @param moviesFile path to the MovieLens movies file
+     */
+    public MovieMetadata(MovieHandler ratings, String moviesFile) {
+        this(ratings);
+        long startTime = System.currentTimeMillis();
+        System.out.println("Reading movies.. ");
+        BufferedReader br;
+        try {
+            br = new BufferedReader(new FileReader(moviesFile));
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] tokens = line.split("::");
+                if (tokens.length < 2) continue;
+                int movie = Arrays.binarySearch(movieIDs, Integer.parseInt(tokens[0]));
+                if (movie < 0) continue;  // not rated: can't be predicted either
+                titles[movie] = tokens[1];
+                if (tokens.length < 3) continue;
+                for (String genre: tokens[2].split("\\|")) {
+                    if (genre.isEmpty() || genre.equals(NO_GENRES)) continue;
+                    long[] bits = genres.get(genre);
+                    if (bits == null) {
+                        bits = new long[numWords];
+                        genres.put(genre, bits);
+                    }
+                    bits[movie >>> 6] |= 1L << movie;
+                }
+            }
+            br.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println("done, took " +  (System.currentTimeMillis() - startTime)/1000.0 + "seconds.");
+        System.out.println("--------------");
+    }
+
+    /**
+     * @param movieID true movie ID
+     * @return start of the ratings of the movie in getRaters() and getRaterRatings()
+     */
+    int getRatersStart(int movieID) {
+        int movie = Arrays.binarySearch(movieIDs, movieID);
+        return (movie < 0) ? 0 : raters.getStart(movie);
+    }
+
+    /**
+     * @return end (exclusive) of the ratings of the movie in getRaters() and getRaterRatings()
+     */
+    int getRatersEnd(int movieID) {
+        int movie = Arrays.binarySearch(movieIDs, movieID);
+        return (movie < 0) ? 0 : raters.getEnd(movie);
+    }
+
+    /**
+     * @return internal IDs of the users that rated each movie, increasing per movie
+     */
+    int[] getRaters() {
+        return raters.getUsers();
+    }
+
+    /**
+     * @return the ratings of getRaters()
+     */
+    double[] getRaterRatings() {
+        return raters.getRatings();
+    }
+
+    /**
+     * @return the genres of the movies file, sorted
+     */
+    public Set<String> getGenres() {
+        return Collections.unmodifiableSet(genres.keySet());
+    }
+
+    /**
+     * @param movieID true movie ID
+     * @return the title, null if the movie is not known
+     */
+    public String getTitle(int movieID) {
+        int movie = Arrays.binarySearch(movieIDs, movieID);
+        return (movie < 0) ? null : titles[movie];
+    }
+
+    /**
+     * @return a copy of the bitset of the movies of a genre, empty if the genre is not known
+     */
+    public long[] getGenre(String genre) {
+        long[] bits = genres.get(genre);
+        return (bits == null) ? new long[numWords] : bits.clone();
+    }
+
+    /**
+     * Builds the bitset of the movies a user rated, from the current ratings
+     * @param userID true user ID
+     * @return the bitset, empty for unknown users
+     */
+    public long[] getSeenMovies(int userID) {
+        long[] seen = new long[numWords];
+        List<MovieRating> userRatings = ratings.getUsersToRatings().get(userID);
+        if (userRatings == null) return seen;
+        for (int r = 0; r < userRatings.size(); r++) {
+            int movie = Arrays.binarySearch(movieIDs, userRatings.get(r).getMovieID());
+            if (movie >= 0) seen[movie >>> 6] |= 1L << movie;
+        }
+        return seen;
+    }
+
+    /**
+     * Movies a user has not rated yet, in any of the given genres
+     * @param userID true user ID
+     * @param genres genres to keep, none to keep all movies
+     * @return the bitset of the candidates: (genre1 | genre2 | ...) & ~seen
+     */
+    public long[] candidates(int userID, String... genres) {
+        long[] candidates = new long[numWords];
+        if (genres.length == 0) {
+            Arrays.fill(candidates, -1L);
+            // clear the bits after the last movie
+            if (movieIDs.length % 64 != 0) candidates[numWords - 1] = (1L << movieIDs.length) - 1;
+        }
+        for (String genre: genres) {
+            long[] bits = this.genres.get(genre);
+            if (bits == null) continue;
+            for (int w = 0; w < numWords; w++) {
+                candidates[w] |= bits[w];
+            }
+        }
+        long[] seen = getSeenMovies(userID);
+        for (int w = 0; w < numWords; w++) {
+            candidates[w] &= ~seen[w];
+        }
+        return candidates;
+    }
+
+    /**
+     * @return the true movie IDs of the bits that are set, sorted
+     */
+    public int[] toMovieIDs(long[] bits) {
+        int[] ids = new int[cardinality(bits)];
+        int i = 0;
+        for (int w = 0; w < bits.length; w++) {
+            long word = bits[w];
+            while (word != 0) {
+                ids[i++] = movieIDs[(w << 6) + Long.numberOfTrailingZeros(word)];
+                word &= word - 1;  // clear the lowest bit
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return number of bits that are set
+     */
+    public static int cardinality(long[] bits) {
+        int count = 0;
+        for (long word: bits) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+}
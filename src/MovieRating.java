@@ -8,10 +8,16 @@ public class MovieRating implements Comparable<MovieRating>{
 
     private int movieID;
     private double rating;
+    private long timestamp;  // 0 if not known
 
     public MovieRating(int movieID, double rating) {
+        this(movieID, rating, 0);
+    }
+
+    public MovieRating(int movieID, double rating, long timestamp) {
         this.movieID = movieID;
         this.rating = rating;
+        this.timestamp = timestamp;
     }
 
     public int getMovieID() {
@@ -22,6 +28,13 @@ public class MovieRating implements Comparable<MovieRating>{
         return rating;
     }
 
+    /**
+     * @return time of the rating, in seconds since the epoch, 0 if not known
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
     @Override
     public int compareTo(MovieRating r) {
         if (rating < r.getRating()) {
@@ -2,6 +2,8 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
@@ -9,39 +11,210 @@ import java.util.*;
  * Example command to run:
  *      java -cp .:bin/ MovieRunner -trainingFile data/ra.train -matrixFile data/ra.matrix -testFile data/ra.test
  *
+ * Predictions centre the ratings on the baseline predictor (see BaselinePredictor),
+ * -userMeanPrediction centres them on the user means instead.
+ * -reloadTrainingFile and -reloadMatrixFile swap in a second model after the first
+ * evaluation (see reloadModel) and evaluate again.
+ * -predictionCache N caches up to N predictions (see PredictionCache); the test
+ * set then prefetches the movies of each user in one pass over the neighbourhood.
+ *
+ * Top-N recommendations, optionally restricted to some genres (see MovieMetadata):
+ *      java -cp .:bin/ MovieRunner -trainingFile data/ra.train -matrixFile data/ra.matrix
+ *          -moviesFile data/movies.dat -recommendUser 1 -genres Comedy,Drama -topN 10
+ *
  * @author Toon Van Craenendonck
  * @author Pieter Robberechts
  */
 
 public class MovieRunner {
 
-    static MovieHandler ratings;
-    static PearsonsCorrelation similarities;
+    /**
+     * The model currently used for predictions. It is replaced as a whole by
+     * reloadModel(), so a prediction always sees a consistent ratings/matrix pair.
+     */
+    static final AtomicReference<ModelGeneration> model = new AtomicReference<>();
     static boolean onlinePearson = false;
+    /** centre ratings on the baseline (mu + b(u) + b(i)) instead of the user means */
+    static boolean baselinePrediction = true;
+    /** max number of cached predictions per model generation, 0 to not cache */
+    static int predictionCacheSize = 0;
     static String testFile;
 
+    /**
+     * Single background thread that builds new generations. Daemon, so it never
+     * keeps the JVM alive on its own.
+     */
+    private static final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "model-loader");
+        t.setDaemon(true);
+        return t;
+    });
+
     /**
      * Predict the rating of user with external id externUserID for movie with id movieID.
-     * Uses
+     * Runs against the generation that is current when the call starts, even if a
+     * new one is swapped in meanwhile.
      *
      * @param externUserID external id of user whose rating should be predict
      * @param movieID movie for which the rating should be predicted
      * @return the predicted rating
      */
     public static double predictRating(int externUserID, int movieID){
+        ModelGeneration current = acquireModel();
+        try {
+            return predictRating(current, externUserID, movieID);
+        } finally {
+            current.release();
+        }
+    }
+
+    /**
+     * Same as previous method, on a given model generation. Uses the prediction
+     * cache of the generation, if it has one.
+     */
+    public static double predictRating(ModelGeneration model, int externUserID, int movieID){
+        PredictionCache cache = model.getPredictionCache();
+        if (cache == null) return predictRating(model, externUserID, movieID, baselinePrediction);
+        long key = PredictionCache.key(externUserID, movieID);
+        double rating = cache.get(key);
+        if (!Double.isNaN(rating)) return rating;
+        rating = predictRating(model, externUserID, movieID, baselinePrediction);
+        cache.put(key, rating);
+        return rating;
+    }
+
+    /**
+     * Computes the predictions of a user for the movies that are not cached yet, in
+     * one pass over the neighbourhood, and caches them. Does nothing if the generation
+     * has no cache.
+     *
+     * @param externUserID external id of the user
+     * @param movieIDs movies that will be asked for soon
+     */
+    public static void prefetchRatings(ModelGeneration model, int externUserID, int[] movieIDs) {
+        PredictionCache cache = model.getPredictionCache();
+        if (cache == null) return;
+        int[] pending = new int[movieIDs.length];
+        int numPending = 0;
+        for (int movieID: movieIDs) {
+            if (!cache.contains(PredictionCache.key(externUserID, movieID))) pending[numPending++] = movieID;
+        }
+        if (numPending == 0) return;
+        pending = Arrays.copyOf(pending, numPending);
+        double[] predictions = predictRatings(model, externUserID, pending, baselinePrediction);
+        for (int m = 0; m < numPending; m++) {
+            cache.put(PredictionCache.key(externUserID, pending[m]), predictions[m]);
+        }
+    }
+
+    /**
+     * Predicts the ratings of one user for several movies, with the same result as
+     * predictRating for each of them. The neighbourhood is walked once, and the
+     * ratings of each neighbor are scanned once for all movies, instead of once per movie.
+     *
+     * @param externUserID external id of the user
+     * @param movieIDs movies for which the rating should be predicted
+     * @param baselinePrediction true to centre on the baseline, false on the user means
+     * @return the predicted ratings, in the order of movieIDs
+     */
+    public static double[] predictRatings(ModelGeneration model, int externUserID, int[] movieIDs,
+                                          boolean baselinePrediction) {
+        MovieHandler ratings = model.getRatings();
+        PearsonsCorrelation similarities = model.getSimilarities();
+        double[] predictions = new double[movieIDs.length];
+        int internUserID = ratings.getInternalUserID(externUserID);
+        // user not in the training data (cold start): the baseline is mu + b(i)
+        if (internUserID < 0) {
+            for (int m = 0; m < movieIDs.length; m++) {
+                predictions[m] = clampRating(ratings.getBaseline().predict(internUserID, movieIDs[m]));
+            }
+            return predictions;
+        }
+        // only fitted when it is used
+        BaselinePredictor baseline = baselinePrediction ? ratings.getBaseline() : null;
+
+        // distinct movies, sorted to find the ratings of a neighbor by binary search
+        int[] movies = movieIDs.clone();
+        Arrays.sort(movies);
+        int numMovies = 0;
+        for (int m = 0; m < movies.length; m++) {
+            if (m == 0 || movies[m] != movies[m - 1]) movies[numMovies++] = movies[m];
+        }
+        // looked up in the baseline once per movie, not once per neighbor
+        int[] baselineMovies = new int[baselinePrediction ? numMovies : 0];
+        for (int m = 0; m < baselineMovies.length; m++) {
+            baselineMovies[m] = baseline.getMovieIndex(movies[m]);
+        }
+        double[] weightSums = new double[numMovies];
+        double[] neighborContributions = new double[numMovies];
+        // last neighbor that rated the movie: only its first rating counts, as in getFilmRating
+        int[] ratedBy = new int[numMovies];
+        Arrays.fill(ratedBy, -1);
+
+        CompactNeighborhood neighborhood = similarities.getCompactNeighborhood(internUserID);
+        CompactNeighborhood.Cursor n = (neighborhood == null) ? null : neighborhood.cursor();
+        while (n != null && n.next()) {
+            int internNeighborID = n.getUserID();
+            Integer externNeighborID = ratings.getUserIDs().get(internNeighborID);
+            double weight = n.getSimilarity();
+            List<MovieRating> neighborRatings = ratings.getUsersToRatings().get(externNeighborID);
+            for (int r = 0; r < neighborRatings.size(); r++) {
+                MovieRating mr = neighborRatings.get(r);
+                int m = Arrays.binarySearch(movies, 0, numMovies, mr.getMovieID());
+                if (m < 0 || ratedBy[m] == internNeighborID) continue;
+                ratedBy[m] = internNeighborID;
+                double filmRating = mr.getRating();
+                if (filmRating > 0) {
+                    weightSums[m] += Math.abs(weight);
+                    double neighAvgRating = baselinePrediction ? baseline.predictByIndex(internNeighborID, baselineMovies[m])
+                            : similarities.getUserAvgRating(internNeighborID);
+                    neighborContributions[m] += weight * (filmRating - neighAvgRating);
+                }
+            }
+        }
+
+        for (int i = 0; i < movieIDs.length; i++) {
+            int m = Arrays.binarySearch(movies, 0, numMovies, movieIDs[i]);
+            double userAvgRating = baselinePrediction ? baseline.predictByIndex(internUserID, baselineMovies[m])
+                    : similarities.getUserAvgRating(internUserID);
+            double rating = (weightSums[m] > 0) ? userAvgRating + (neighborContributions[m]/weightSums[m]) : userAvgRating;
+            predictions[i] = clampRating(rating);
+        }
+        return predictions;
+    }
+
+    /**
+     * Same as previous method, with the centring given explicitly instead of by the
+     * static flag, e.g. to evaluate both at the same time.
+     * @param baselinePrediction true to centre on the baseline, false on the user means
+     */
+    public static double predictRating(ModelGeneration model, int externUserID, int movieID,
+                                       boolean baselinePrediction){
+        MovieHandler ratings = model.getRatings();
+        PearsonsCorrelation similarities = model.getSimilarities();
         double rating = 0;
-        int internUserID = ratings.getUserIDs().indexOf(externUserID);
-        Set<Neighbor> neighborhood = similarities.getUserNeighborhood(internUserID);
+        int internUserID = ratings.getInternalUserID(externUserID);
+        // user not in the training data (cold start): the baseline is mu + b(i)
+        if (internUserID < 0) return clampRating(ratings.getBaseline().predict(internUserID, movieID));
+        // only fitted when it is used
+        BaselinePredictor baseline = baselinePrediction ? ratings.getBaseline() : null;
+        // looked up once, not once per neighbor
+        int baselineMovie = baselinePrediction ? baseline.getMovieIndex(movieID) : -1;
+        CompactNeighborhood neighborhood = similarities.getCompactNeighborhood(internUserID);
 
-        // get the user mean rating (should be calculated)
-        double userAvgRating = similarities.getUserAvgRating(internUserID);
+        // get the user mean rating (should be calculated), or the user baseline for the movie
+        double userAvgRating = baselinePrediction ? baseline.predictByIndex(internUserID, baselineMovie)
+                : similarities.getUserAvgRating(internUserID);
 
         double weightSum = 0;
         double neighborContributions = 0;
-        for (Neighbor n: neighborhood) {
+        // no neighbors at all (no correlation defined): falls back to the user average
+        CompactNeighborhood.Cursor n = (neighborhood == null) ? null : neighborhood.cursor();
+        while (n != null && n.next()) {
             //get internal and external id
-            int internNeighborID = n.id;
-            int externNeighborID = ratings.getUserIDs().get(internNeighborID);
+            int internNeighborID = n.getUserID();
+            // kept boxed: unboxing and boxing again for the map lookup allocates per neighbor
+            Integer externNeighborID = ratings.getUserIDs().get(internNeighborID);
             // get the weight, add it to paramater a
             double weight = n.getSimilarity();
             //get its ratings
@@ -51,14 +224,22 @@ public class MovieRunner {
             if (filmRating > 0) {
                 //normalize the weights
                 weightSum += Math.abs(weight);
-                // Rj
-                double neighAvgRating = similarities.getUserAvgRating(internNeighborID);
+                // Rj, or the neighbor baseline for the movie
+                double neighAvgRating = baselinePrediction ? baseline.predictByIndex(internNeighborID, baselineMovie)
+                        : similarities.getUserAvgRating(internNeighborID);
                 // wij * (Rjk - Rj)
                 neighborContributions += weight * (filmRating - neighAvgRating);
             }
         }
         // if no neighbor rated the film, just return the user average
         rating = (weightSum > 0) ? userAvgRating + (neighborContributions/weightSum) : userAvgRating;
+        return clampRating(rating);
+    }
+
+    /**
+     * Keeps a predicted rating within the rating scale
+     */
+    private static double clampRating(double rating) {
         if (rating > 5) return 5;
         else if (rating < 0) return 0;
         else return rating;
@@ -72,12 +253,214 @@ public class MovieRunner {
      * @return
      */
     public static double getFilmRating(List<MovieRating> movies, int movieID) {
-        for (MovieRating mr : movies) {
-            if (mr.getMovieID() == movieID) return mr.getRating();
+        // indexed loop: no iterator per neighbor
+        for (int i = 0; i < movies.size(); i++) {
+            if (movies.get(i).getMovieID() == movieID) return movies.get(i).getRating();
         }
         return 0;
     }
 
+    /**
+     * Recommends the movies with the highest predicted rating that the user did not
+     * rate yet. The candidates are filtered on the bitsets of the metadata first,
+     * and only the movies that pass the filter are scored: each by looking at the
+     * users that rated it, so the time grows with the number of candidates and not
+     * with the size of the neighbourhood times the ratings of each neighbor.
+     *
+     * @param movies index of the movies of the model
+     * @param externUserID external id of the user
+     * @param n number of movies to recommend
+     * @param genres genres to recommend from, none for all movies
+     * @return up to n true movie IDs, best first
+     */
+    public static int[] recommend(ModelGeneration model, MovieMetadata movies, int externUserID, int n,
+                                  String... genres) {
+        int[] candidates = movies.toMovieIDs(movies.candidates(externUserID, genres));
+        double[] predictions = predictCandidates(model, movies, externUserID, candidates);
+        Integer[] order = new Integer[candidates.length];
+        for (int c = 0; c < candidates.length; c++) {
+            order[c] = c;
+        }
+        // best prediction first, ties by movie ID
+        Arrays.sort(order, (c1, c2) -> (predictions[c1] != predictions[c2])
+                ? Double.compare(predictions[c2], predictions[c1]) : Integer.compare(candidates[c1], candidates[c2]));
+        int[] recommended = new int[Math.min(n, candidates.length)];
+        for (int r = 0; r < recommended.length; r++) {
+            recommended[r] = candidates[order[r]];
+        }
+        return recommended;
+    }
+
+    /**
+     * Predicts the ratings of one user for several movies from the ratings of the
+     * movies instead of those of the neighbors. Same result as predictRating as long
+     * as the ratings did not change since the metadata was loaded.
+     * @param movieIDs true movie IDs
+     * @return the predicted ratings, in the order of movieIDs
+     */
+    static double[] predictCandidates(ModelGeneration model, MovieMetadata movies, int externUserID,
+                                      int[] movieIDs) {
+        MovieHandler ratings = model.getRatings();
+        PearsonsCorrelation similarities = model.getSimilarities();
+        BaselinePredictor baseline = baselinePrediction ? ratings.getBaseline() : null;
+        int internUserID = ratings.getInternalUserID(externUserID);
+        CompactNeighborhood neighborhood = (internUserID < 0) ? null : similarities.getCompactNeighborhood(internUserID);
+        // cold start or no neighbors: nothing to look up
+        if (neighborhood == null) return predictRatings(model, externUserID, movieIDs, baselinePrediction);
+
+        // the neighbors in increasing internal id, as the cursor gives them
+        int k = neighborhood.size();
+        int[] neighborIDs = new int[k];
+        double[] weights = new double[k];
+        CompactNeighborhood.Cursor n = neighborhood.cursor();
+        for (int i = 0; n.next(); i++) {
+            neighborIDs[i] = n.getUserID();
+            weights[i] = n.getSimilarity();
+        }
+
+        int[] raters = movies.getRaters();
+        double[] raterRatings = movies.getRaterRatings();
+        double[] predictions = new double[movieIDs.length];
+        for (int m = 0; m < movieIDs.length; m++) {
+            int movieID = movieIDs[m];
+            int baselineMovie = baselinePrediction ? baseline.getMovieIndex(movieID) : -1;
+            double weightSum = 0;
+            double neighborContributions = 0;
+            // intersect the sorted raters with the sorted neighbors, skipping ahead on
+            // either side by binary search: O(min(k, raters) log max(k, raters)). The
+            // common users come in increasing internal id: same order (and sums) as the
+            // neighbourhood cursor
+            int i = 0;
+            int p = movies.getRatersStart(movieID);
+            int end = movies.getRatersEnd(movieID);
+            while (i < k && p < end) {
+                if (raters[p] < neighborIDs[i]) {
+                    p = lowerBound(raters, p, end, neighborIDs[i]);
+                } else if (raters[p] > neighborIDs[i]) {
+                    i = lowerBound(neighborIDs, i, k, raters[p]);
+                } else {
+                    // only the first rating of a neighbor counts, as in getFilmRating: the
+                    // next ones are skipped by the next search
+                    int internNeighborID = raters[p];
+                    double weight = weights[i];
+                    double filmRating = raterRatings[p];
+                    if (filmRating > 0) {
+                        weightSum += Math.abs(weight);
+                        double neighAvgRating = baselinePrediction ? baseline.predictByIndex(internNeighborID, baselineMovie)
+                                : similarities.getUserAvgRating(internNeighborID);
+                        neighborContributions += weight * (filmRating - neighAvgRating);
+                    }
+                    i++;
+                    p++;
+                }
+            }
+            double userAvgRating = baselinePrediction ? baseline.predictByIndex(internUserID, baselineMovie)
+                    : similarities.getUserAvgRating(internUserID);
+            double rating = (weightSum > 0) ? userAvgRating + (neighborContributions/weightSum) : userAvgRating;
+            predictions[m] = clampRating(rating);
+        }
+        return predictions;
+    }
+
+    /**
+     * @return the first index in a[from..to) whose value is at least key, to if there is none
+     */
+    private static int lowerBound(int[] a, int from, int to, int key) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (a[mid] < key) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Returns the current generation, registered as in use. The caller must call
+     * release() on it when done.
+     * If a swap happens between reading and registering, the stale generation is
+     * released again and the new one is taken, so a retired generation never gains
+     * requests after the loader started draining it.
+     */
+    static ModelGeneration acquireModel() {
+        while (true) {
+            ModelGeneration current = model.get();
+            current.acquire();
+            if (current == model.get()) return current;
+            current.release();
+        }
+    }
+
+    /**
+     * Builds a new model generation in the background and swaps it in once it is
+     * fully loaded. Predictions keep using the old generation until the swap; the old
+     * one is dropped after the requests still running on it have finished.
+     *
+     * If the files are missing or do not make a usable model (see
+     * ModelGeneration.validate), the Future fails and the old generation stays.
+     *
+     * @param trainingFile path to the new training file
+     * @param matrixFile path to the new correlation matrix
+     * @return the generation that was swapped in
+     */
+    public static Future<ModelGeneration> reloadModel(String trainingFile, String matrixFile) {
+        return loader.submit(() -> {
+            ModelGeneration old = model.get();
+            long number = (old == null) ? 0 : old.getNumber() + 1;
+            return swapModel(ModelGeneration.load(number, trainingFile, matrixFile, predictionCacheSize));
+        });
+    }
+
+    /**
+     * Swaps in a generation that was built elsewhere, on the loader thread, the
+     * same way as reloadModel
+     * @param next the new generation
+     * @return the generation that was swapped in
+     */
+    public static Future<ModelGeneration> publishModel(ModelGeneration next) {
+        return loader.submit(() -> swapModel(next));
+    }
+
+    /**
+     * Publishes the ratings that a RatingStream applied to a MovieHandler that is not
+     * serving: takes a snapshot of it, computes the neighbourhoods on the snapshot in
+     * the background and swaps the result in, the same way as reloadModel. The stream
+     * keeps updating its own MovieHandler, the generations never change.
+     * Must be called by the thread that updates streamed, e.g. from a
+     * RatingStream.Listener.
+     *
+     * @param streamed the MovieHandler the stream updates, with its ratings committed
+     * @param kNeighbors max size of the neighbourhoods
+     * @return the generation that was swapped in
+     */
+    public static Future<ModelGeneration> publishRatings(MovieHandler streamed, int kNeighbors) {
+        MovieHandler ratings = streamed.snapshot();
+        return loader.submit(() -> {
+            ModelGeneration old = model.get();
+            long number = (old == null) ? 0 : old.getNumber() + 1;
+            PearsonsCorrelation similarities = new PearsonsCorrelation(ratings, kNeighbors);
+            return swapModel(new ModelGeneration(number, ratings, similarities, predictionCacheSize));
+        });
+    }
+
+    /**
+     * Validates a generation, swaps it in and waits until the old one is drained
+     * @throws IOException if next is not usable, in which case nothing is swapped
+     */
+    private static ModelGeneration swapModel(ModelGeneration next) throws IOException, InterruptedException {
+        next.validate();
+        ModelGeneration old = model.getAndSet(next);
+        System.out.println("Swapped in model " + next);
+        if (old != null) {
+            // wait for in-flight requests, after which the old generation is unreachable
+            while (old.getInFlight() > 0) Thread.sleep(1);
+            old.retire();
+            System.out.println("Released model " + old);
+        }
+        return next;
+    }
+
 
 
     /**
@@ -86,8 +469,23 @@ public class MovieRunner {
      * Prints the current mean absolute error (MAE) after every 50 users.
      *
      * @param testFile path to file containing test set
+     * @return the RMSE of the recommender
+     */
+    public static double evaluate(String testFile) {
+        ModelGeneration current = acquireModel();
+        try {
+            return evaluate(current, testFile);
+        } finally {
+            current.release();
+        }
+    }
+
+    /**
+     * Same as previous method, on a given model generation.
      */
-    public static void evaluate(String testFile) {
+    public static double evaluate(ModelGeneration model, String testFile) {
+        MovieHandler ratings = model.getRatings();
+        PredictionCache cache = model.getPredictionCache();
 
         double summedErrorRecommenderSq = 0;
         double summedErrorAvgSq = 0;
@@ -96,46 +494,72 @@ public class MovieRunner {
         int est_used = 0;
         int ctr = 0;
 
-        BufferedReader br;
         int startTime = (int) (System.currentTimeMillis()/1000);
         int elapsedTime = 0;
+        // the queries of a user are listed together: they are read as a group, which
+        // is prefetched in one pass over the neighbourhood if predictions are cached
+        int groupUserID = -1;
+        int groupSize = 0;
+        int[] groupMovieIDs = new int[16];
+        double[] groupRatings = new double[16];
+        BufferedReader br;
         try {
             br = new BufferedReader(new FileReader(testFile));
             String line;
-            while ((line = br.readLine()) != null) {
-                String[] tokens = line.split("::|\t");
-
-                int userID = Integer.parseInt(tokens[0]);
-                int movieID = Integer.parseInt(tokens[1]);
-                double rating = Double.parseDouble(tokens[2]);
+            do {
+                line = br.readLine();
+                int userID = -1;
+                String[] tokens = null;
+                if (line != null) {
+                    tokens = line.split("::|\t");
+                    userID = Integer.parseInt(tokens[0]);
+                }
+                if (groupSize > 0 && (line == null || userID != groupUserID)) {
+                    if (cache != null) prefetchRatings(model, groupUserID, Arrays.copyOf(groupMovieIDs, groupSize));
+                    for (int g = 0; g < groupSize; g++) {
+                        int movieID = groupMovieIDs[g];
+                        double rating = groupRatings[g];
 
-                double avgRating = ratings.getMovieAverageRating(movieID);
-                double estimate = predictRating(userID, movieID);
+                        double avgRating = ratings.getMovieAverageRating(movieID);
+                        double estimate = predictRating(model, groupUserID, movieID);
 
-                summedErrorRecommenderSq += Math.pow(rating - estimate,2);
-                summedErrorAvgSq += Math.pow(rating - avgRating, 2);
-                ctr++;
+                        summedErrorRecommenderSq += Math.pow(rating - estimate,2);
+                        summedErrorAvgSq += Math.pow(rating - avgRating, 2);
+                        ctr++;
 
-                if (avgRating == estimate) {
-                    avg_used++;
-                } else {
-                    est_used++;
+                        if (avgRating == estimate) {
+                            avg_used++;
+                        } else {
+                            est_used++;
+                        }
+                        if ((ctr % 50) == 0) {
+                            elapsedTime = (int)(System.currentTimeMillis()/1000) - startTime;
+                            int remainingTime = (int) (elapsedTime * 698780f / ctr) - elapsedTime;
+                            System.out.println("RMSE (default): " + Math.sqrt(summedErrorAvgSq/ctr)
+                            + " RMSE (recommender): " + Math.sqrt(summedErrorRecommenderSq/ctr)
+                            + " Time remaining: " + (int) ((remainingTime / (60*60)) % 24) + "h" + (int) ((remainingTime / 60) % 60)
+                            );
+                        }
+                    }
+                    groupSize = 0;
                 }
-                if ((ctr % 50) == 0) {
-                    elapsedTime = (int)(System.currentTimeMillis()/1000) - startTime;
-                    int remainingTime = (int) (elapsedTime * 698780f / ctr) - elapsedTime;
-                    System.out.println("RMSE (default): " + Math.sqrt(summedErrorAvgSq/ctr)
-                    + " RMSE (recommender): " + Math.sqrt(summedErrorRecommenderSq/ctr)
-                    + " Time remaining: " + (int) ((remainingTime / (60*60)) % 24) + "h" + (int) ((remainingTime / 60) % 60)
-                    );
+                if (line != null) {
+                    if (groupSize == groupMovieIDs.length) {
+                        groupMovieIDs = Arrays.copyOf(groupMovieIDs, 2 * groupSize);
+                        groupRatings = Arrays.copyOf(groupRatings, 2 * groupSize);
+                    }
+                    groupUserID = userID;
+                    groupMovieIDs[groupSize] = Integer.parseInt(tokens[1]);
+                    groupRatings[groupSize] = Double.parseDouble(tokens[2]);
+                    groupSize++;
                 }
-            }
+            } while (line != null);
             br.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
-
-
+        if (cache != null) System.out.println("Prediction cache: " + cache);
+        return Math.sqrt(summedErrorRecommenderSq/ctr);
     }
 
     public static void main(String[] args) {
@@ -143,6 +567,12 @@ public class MovieRunner {
         String trainingFile = "";
         String testFile = "";
         String matrixFile = null;
+        String reloadTrainingFile = null;
+        String reloadMatrixFile = null;
+        String moviesFile = null;
+        int recommendUser = -1;
+        String[] genres = new String[0];
+        int topN = 10;
 
         int i = 0;
         while (i < args.length && args[i].startsWith("-")) {
@@ -153,14 +583,32 @@ public class MovieRunner {
                 testFile = args[i+1];
             } else if(arg.equals("-matrixFile")) {
                 matrixFile = args[i+1];
+            } else if(arg.equals("-reloadTrainingFile")) {
+                reloadTrainingFile = args[i+1];
+            } else if(arg.equals("-reloadMatrixFile")) {
+                reloadMatrixFile = args[i+1];
             } else if(arg.equals("-onlinePearson")) {
                 onlinePearson = true;
+            } else if(arg.equals("-moviesFile")) {
+                moviesFile = args[i+1];
+            } else if(arg.equals("-recommendUser")) {
+                recommendUser = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-genres")) {
+                genres = args[i+1].split(",");
+            } else if(arg.equals("-topN")) {
+                topN = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-predictionCache")) {
+                predictionCacheSize = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-userMeanPrediction")) {
+                baselinePrediction = false;
+                i--;  // flag without value
             }
             // ADD ADDITIONAL PARAMETERS HERE //
             i += 2;
         }
 
-        ratings = new MovieHandler(trainingFile);
+        MovieHandler ratings = new MovieHandler(trainingFile);
+        PearsonsCorrelation similarities;
         if (!onlinePearson)
             // Load a precomputed Pearson correlation matrix
             similarities = new PearsonsCorrelation(ratings, matrixFile);
@@ -168,7 +616,33 @@ public class MovieRunner {
             // Compute Pearson correlations on the fly.
             // Beware that this will be very slow!
             similarities = new PearsonsCorrelation();
-        evaluate(testFile);
+        model.set(new ModelGeneration(0, ratings, similarities, predictionCacheSize));
+        if (recommendUser >= 0) {
+            MovieMetadata movies = (moviesFile == null) ? new MovieMetadata(ratings)
+                    : new MovieMetadata(ratings, moviesFile);
+            long start = System.currentTimeMillis();
+            int[] recommended = recommend(model.get(), movies, recommendUser, topN, genres);
+            System.out.println("Top " + topN + " for user " + recommendUser + ", took "
+                    + (System.currentTimeMillis() - start)/1000F + " seconds");
+            for (int movieID: recommended) {
+                System.out.println(movieID + "::" + movies.getTitle(movieID) + "::"
+                        + predictRating(model.get(), recommendUser, movieID));
+            }
+        }
+        if (!testFile.isEmpty()) evaluate(testFile);
+
+        // swap in a new model in the background, and evaluate it too
+        if (reloadTrainingFile != null) {
+            try {
+                reloadModel(reloadTrainingFile, reloadMatrixFile).get();
+            } catch (ExecutionException e) {
+                System.out.println("Reload failed, keeping model " + model.get() + ": " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (!testFile.isEmpty()) evaluate(testFile);
+        }
     }
 
 }
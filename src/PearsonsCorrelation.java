@@ -17,25 +17,81 @@ import java.util.*;
  * Example command:
  *      java -cp .:bin/ PearsonsCorrelation -trainingFile data/r1.train -outputFile out/r1.matrix
  *
+ * The build can also be split over several processes. Each process computes
+ * the rows of the upper triangle owned by its shard and writes the partial
+ * neighbourhoods to a shard file, which are merged afterwards:
+ *      java -cp .:bin/ PearsonsCorrelation -trainingFile data/r1.train -shard 0 -numShards 2 -outputFile out/r1.shard0
+ *      java -cp .:bin/ PearsonsCorrelation -trainingFile data/r1.train -shard 1 -numShards 2 -outputFile out/r1.shard1
+ *      java -cp .:bin/ PearsonsCorrelation -mergeShards out/r1.shard0,out/r1.shard1 -outputFile out/r1.matrix
+ *
+ * With -lshRows, only the candidate pairs found by MinHash LSH are computed
+ * (approximate build, see MinHashLSH). The number of bands is given by -lshBands,
+ * or derived from the probability -lshCollisionProbability that users with Jaccard
+ * similarity -lshSimilarity become a candidate pair.
+ *
+ * With -baselineCentring, ratings are centred on the baseline predictor instead of
+ * on the user means (see BaselinePredictor).
+ *
+ * With -reorderUsers, users that rated the same movies get adjacent internal ids
+ * during the build, for locality (see MovieHandler). Files use the sorted order of
+ * the users in any case. Keeping all neighbors, the files are the same with or without
+ * reordering. With -kNeighbors they may differ: when a neighbourhood is full,
+ * addNeighbor evicts by a heuristic that depends on the order in which the neighbors
+ * are added, and reordering changes that order.
+ *
+ * With -neighborhoodFile, the neighbourhoods are also written in a compact binary
+ * format (see CompactNeighborhood), which can be loaded instead of the matrix file.
+ *
+ * Once constructed, an instance can be shared by many threads without
+ * synchronization: user averages are computed up front, correlation(userA, userB)
+ * takes the user ids as arguments, and the neighbourhoods are immutable. The
+ * methods that take user ids from the currentUser fields or (re)load a matrix
+ * into an existing instance are not thread safe.
+ *
  * @author Pieter Robberechts
  *
  */
 public class PearsonsCorrelation {
     /** corr: list of lists implementation of the correlation matrix. Using internal ids.
      * Very sparse matrix: most elements are NaN. They won't be stored to save space.
-     * Used sets for O(1) speed of .contains(). Map of sets approaches the LOL
+     * Used sets for O(1) speed of .contains(). List of sets, indexed by internal id
+     * (a map would box the id on every access). null if a user has no neighbors.
      * Max size: kNeighbors * N
      **/
-    private Map<Integer, Set<Neighbor>> corr;
+    private List<Set<Neighbor>> corr;
+    /**
+     * neighborhoods: final, read-only neighbourhoods, by internal id (null if a user has none).
+     * Once the matrix is built or read, corr is compacted into these and dropped.
+     * @see CompactNeighborhood
+     **/
+    private CompactNeighborhood[] neighborhoods;
     private ArrayList<Integer> userIDs;  //maps internal ID to real user ID
-    private Double[] userAvgRatings;    //stores users average ratings to avoid recalculations
+    private int numUsers;               //size of the matrix, also known when userIDs is not
+    private MovieHandler ratings;       //training data, to compute correlations by user id
+    private double[] userAvgRatings;    //stores users average ratings to avoid recalculations, NaN if unknown
+    private int[][] ratedMovies;        //movie ids of the ratings of every user at construction, by internal id
+    private double[][] centredRatings;  //the same ratings, centred on the user mean, or on the baseline:
+                                        //r(u, i) - b(u, i)
     /**
      * Following arguments pass user internal ID to correlation function. That way, userAvgRatings
-     * can be stored by setUserAvgRatings.
+     * can be stored by setUserAvgRatings. Only used by correlation(xRatings, yRatings), which
+     * is therefore not thread safe.
      **/
     private int currentUser1;
     private int currentUser2;
 
+    /**
+     * Rows of the upper triangle are handed out to shards in blocks of this size,
+     * round robin. Rows get shorter towards the bottom of the triangle, so round
+     * robin keeps the shards balanced
+     */
+    static final int ROW_BLOCK = 64;
+    private int shard = 0;
+    private int numShards = 1;
+
+    /** first bytes of a binary neighbourhoods file: "NBHD" */
+    static final int NEIGHBORHOOD_MAGIC = 0x4E424844;
+
 
     /**
      * Create an empty PearsonsCorrelation instance with default parameters.
@@ -49,39 +105,75 @@ public class PearsonsCorrelation {
      * Create a PearsonsCorrelation instance with default parameters.
      */
     public PearsonsCorrelation(MovieHandler ratings) {
+        // default k: keep all neighbors
+        this(ratings, ratings.getNumUsers(), 0, 1, null, null);
+    }
+
+    /**
+     * Builds the matrix, or the part of it that belongs to a shard
+     * @param kNeighbors max size of the neighbourhoods
+     * @param shard index of the shard, from 0 to numShards - 1
+     * @param numShards total number of shards
+     * @param lsh candidate pairs to compute, null to compute all pairs
+     * @param baseline baseline to centre the ratings on, null to centre on the user means
+     */
+    private PearsonsCorrelation(MovieHandler ratings, int kNeighbors, int shard, int numShards,
+                                MinHashLSH lsh, BaselinePredictor baseline) {
+        this(ratings, kNeighbors, shard, numShards, lsh, baseline, numShards == 1);
+    }
+
+    /**
+     * Same as previous constructor
+     * @param compact false to keep the exact similarities, see compact()
+     */
+    private PearsonsCorrelation(MovieHandler ratings, int kNeighbors, int shard, int numShards,
+                                MinHashLSH lsh, BaselinePredictor baseline, boolean compact) {
         super();
         int N = ratings.getNumUsers();
+        this.ratings = ratings;
         this.userIDs = ratings.getUserIDs();
-        this.userAvgRatings = new Double[N];
-        this.corr = new HashMap<>(N);
-        // default k: keep all neighbors
-        computeCorrMatrix(ratings, N);
+        this.numUsers = N;
+        this.userAvgRatings = computeUserAvgRatings(ratings);
+        this.corr = newNeighborhoodList(N);
+        this.shard = shard;
+        this.numShards = numShards;
+        snapshotRatings(ratings, baseline);
+        computeCorrMatrix(ratings, kNeighbors, shard, numShards, lsh);
+        // partial neighbourhoods are kept exact for writeShard
+        if (compact) compact();
     }
 
-    private void computeCorrMatrix(MovieHandler ratings, int kNeighbors) {
+    /**
+     * Computes the correlations of the rows of the upper triangle that belong to shard
+     * (all rows if numShards is 1)
+     * @param kNeighbors max size of the neighbourhoods
+     * @param shard index of the shard, from 0 to numShards - 1
+     * @param numShards total number of shards
+     * @param lsh candidate pairs to compute, null to compute all pairs
+     */
+    private void computeCorrMatrix(MovieHandler ratings, int kNeighbors, int shard, int numShards,
+                                   MinHashLSH lsh) {
         int N = ratings.getNumUsers();
         long start = System.currentTimeMillis();
         System.out.println("Calculating corr matrix...");
         for (int u1 = 0; u1 < N; u1++) {
-            int user1 = this.userIDs.get(u1);
+            if ((u1 / ROW_BLOCK) % numShards != shard) continue;  // row owned by another shard
             // u2 = u1: since matrix is simmetric, correlations are calculated only once
             // and stored twice, once for each user in the pair
             if (u1 % 1000 == 0) System.out.println("Currently at user: " + u1);
-            for (int u2 = u1 + 1; u2 < N; u2++) {
-                int user2 = this.userIDs.get(u2);
-                // pass info to correlation function, and extract the ratings
-                this.currentUser1 = u1;
-                this.currentUser2 = u2;
-                List<MovieRating> ratings1 = ratings.getUsersToRatings().get(user1);
-                List<MovieRating> ratings2 = ratings.getUsersToRatings().get(user2);
-                double sim = correlation(ratings1, ratings2);
+            // without lsh, all users after u1 are candidates
+            int first = (lsh == null) ? u1 + 1 : lsh.getCandidatesStart(u1);
+            int last = (lsh == null) ? N : lsh.getCandidatesEnd(u1);
+            for (int c = first; c < last; c++) {
+                int u2 = (lsh == null) ? c : lsh.getCandidateIDs()[c];
+                double sim = correlation(u1, u2);
                 // add an entry to the similarity matrix twice. This doubles the spaces requirements,
                 // but speeds up neighborhood retrieval by a factor of k (k = number of neighbors).
                 // NaN are not added -> saves much space
                 if (!Double.isNaN(sim)) {
                     // stored neighbor: uses internal id
-                    addNeighbor(u1, new Neighbor(u2, sim), kNeighbors);
-                    addNeighbor(u2, new Neighbor(u1, sim), kNeighbors);
+                    addNeighbor(u1, u2, sim, kNeighbors);
+                    addNeighbor(u2, u1, sim, kNeighbors);
                 }
             }
         }
@@ -95,19 +187,132 @@ public class PearsonsCorrelation {
      * Constructor with the kNeighbors parameter
      */
     public PearsonsCorrelation(MovieHandler ratings, int kNeighbors) {
+        this(ratings, kNeighbors, 0, 1);
+    }
+
+    /**
+     * Computes only the rows of the upper triangle owned by one shard. Both users of
+     * each computed pair get the neighbor, so the neighbourhoods are partial: they only
+     * hold the k best neighbors found by this shard. Use writeShard to save them.
+     * @param shard index of the shard, from 0 to numShards - 1
+     * @param numShards total number of shards (processes)
+     */
+    public PearsonsCorrelation(MovieHandler ratings, int kNeighbors, int shard, int numShards) {
+        this(ratings, kNeighbors, shard, numShards, null, null);
+    }
+
+    /**
+     * Approximate build: only computes the correlations of the candidate pairs found by lsh
+     * @param lsh candidate pairs
+     */
+    public PearsonsCorrelation(MovieHandler ratings, int kNeighbors, MinHashLSH lsh) {
+        this(ratings, kNeighbors, 0, 1, lsh, null);
+    }
+
+    /**
+     * Builds the matrix on the residuals of the baseline predictor: ratings are
+     * centred on mu + b(u) + b(i) instead of on the user mean, which also removes
+     * the movie effects from the correlations
+     * @param baseline the baseline predictor fitted on ratings
+     */
+    public PearsonsCorrelation(MovieHandler ratings, int kNeighbors, BaselinePredictor baseline) {
+        this(ratings, kNeighbors, 0, 1, null, baseline);
+    }
+
+    /**
+     * Builds the matrix without compacting it, to derive the neighbourhoods of
+     * smaller k from the exact similarities. Call compact() once done.
+     * @see PearsonsCorrelation(PearsonsCorrelation, int)
+     */
+    PearsonsCorrelation(MovieHandler ratings, int kNeighbors, boolean compact) {
+        this(ratings, kNeighbors, 0, 1, null, null, compact);
+    }
+
+    /**
+     * Derives smaller neighbourhoods from an already built matrix, without computing
+     * any correlation again. The neighbors of each user are offered in internal id
+     * order, the order in which the build adds them.
+     *
+     * If all was built keeping all neighbors (kNeighbors of at least the number of
+     * users), the result is the one of a build with kNeighbors. A bounded source
+     * only has the neighbors its own evictions kept, which depend on the order they
+     * came in (see addNeighbor): the result then has the best of those, and can
+     * differ from a build with kNeighbors. If all is compacted already, the rounded
+     * similarities may break some ties differently too.
+     * Shares the ratings and the user averages with all.
+     * @param all built matrix, preferably with all neighbors
+     * @param kNeighbors max size of the neighbourhoods
+     */
+    public PearsonsCorrelation(PearsonsCorrelation all, int kNeighbors) {
         super();
-        int N = ratings.getNumUsers();
-        this.userIDs = ratings.getUserIDs();
-        this.userAvgRatings = new Double[N];
-        this.corr = new HashMap<>(N);
-        computeCorrMatrix(ratings, kNeighbors);
+        this.ratings = all.ratings;
+        this.userIDs = all.userIDs;
+        this.numUsers = all.numUsers;
+        this.userAvgRatings = all.userAvgRatings;
+        this.ratedMovies = all.ratedMovies;
+        this.centredRatings = all.centredRatings;
+        this.corr = newNeighborhoodList(this.numUsers);
+        for (int user = 0; user < this.numUsers; user++) {
+            if (all.corr != null) {
+                if (all.corr.get(user) == null) continue;
+                Neighbor[] neighbors = all.corr.get(user).toArray(new Neighbor[0]);
+                Arrays.sort(neighbors, Comparator.comparingInt(Neighbor::getUserID));
+                for (Neighbor n: neighbors) {
+                    addNeighbor(user, n.getUserID(), n.getSimilarity(), kNeighbors);
+                }
+            } else if (all.getCompactNeighborhood(user) != null) {
+                CompactNeighborhood.Cursor n = all.getCompactNeighborhood(user).cursor();
+                while (n.next()) {
+                    addNeighbor(user, n.getUserID(), n.getSimilarity(), kNeighbors);
+                }
+            }
+        }
+        compact();
+    }
+
+    /**
+     * Merges the partial neighbourhoods of several shard files into the final
+     * neighbourhoods, keeping the k best neighbors of every user.
+     * @param shardFiles files written by writeShard, one per shard
+     * @param kNeighbors max size of the neighbourhoods, 0 to keep all neighbors
+     * @throws IllegalArgumentException if the files are not the shards 0 to n - 1 of
+     * the same build, each of them once
+     * @see this.writeShard
+     */
+    public PearsonsCorrelation(List<String> shardFiles, int kNeighbors) {
+        super();
+        long start = System.currentTimeMillis();
+        System.out.println("Merging " + shardFiles.size() + " shards...");
+        boolean[] merged = null;
+        for (String shardFile: shardFiles) {
+            int shard = readShard(shardFile, kNeighbors);
+            if (merged == null) {
+                merged = new boolean[this.numShards];
+            }
+            if (merged[shard]) {
+                throw new IllegalArgumentException("Shard " + shard + " is merged twice (" + shardFile + ")");
+            }
+            merged[shard] = true;
+        }
+        for (int shard = 0; merged != null && shard < merged.length; shard++) {
+            if (!merged[shard]) {
+                throw new IllegalArgumentException("Shard " + shard + " of " + merged.length + " is missing");
+            }
+        }
+        this.shard = 0;
+        this.numShards = 1;
+        compact();
+        long elapsedTimeMillis = System.currentTimeMillis() - start;
+        System.out.println("Done, took " + elapsedTimeMillis/1000F + " seconds");
+        System.out.println("==========================");
     }
 
     /**
      *  Creates a default, empty object, and sets some parameters. For testing purposes
      */
     public PearsonsCorrelation(int N, int user1, int user2) {
-        this.userAvgRatings = new Double[N];
+        this.userAvgRatings = new double[N];
+        Arrays.fill(this.userAvgRatings, Double.NaN);
         this.currentUser1 = user1;
         this.currentUser2 = user2;
     }
@@ -118,27 +323,67 @@ public class PearsonsCorrelation {
     public PearsonsCorrelation(MovieHandler ratings, String filename) {
         super();
         int N = ratings.getNumUsers();
+        this.ratings = ratings;
         this.userIDs = ratings.getUserIDs();
-        this.userAvgRatings = new Double[N];
-        this.corr = new HashMap<>(N);
+        this.numUsers = N;
+        this.userAvgRatings = computeUserAvgRatings(ratings);
+        snapshotRatings(ratings, null);
+        this.corr = newNeighborhoodList(N);
+        if (isNeighborhoodFile(filename))
+            readNeighborhoods(filename);
+        else
+            readCorrelationMatrix(filename);
+    }
 
+    /**
+     * Computes the average rating of all users, also of those that end up without
+     * neighbors (e.g. not a lsh candidate)
+     * @return the averages, by internal id
+     */
+    private static double[] computeUserAvgRatings(MovieHandler ratings) {
         long start = System.currentTimeMillis();
         System.out.println("Calculating usrs average ratings...");
+        int N = ratings.getNumUsers();
+        double[] averages = new double[N];
         for (int u = 0; u < N; u++) {
-            int externID = this.userIDs.get(u);
-            List<MovieRating> r = ratings.getUsersToRatings().get(externID);
-            setUserAvgRating(u, r);
-            }
+            averages[u] = meanRating(ratings.getUsersToRatings().get(ratings.getUserIDs().get(u)));
+        }
         long elapsedTimeMillis = System.currentTimeMillis() - start;
         System.out.println("Done, took " + elapsedTimeMillis/1000F + " seconds");
         System.out.println("==========================");
-        readCorrelationMatrix(filename);
+        return averages;
+    }
+
+    /**
+     * Copies the movie ids of the ratings of every user, and centres the ratings once,
+     * so the correlation loop neither looks up the movies of the co-rated ratings nor
+     * reads the rating lists, which later MovieHandler.putRating calls change
+     * @param baseline baseline to centre the ratings on, null to centre on the user means
+     */
+    private void snapshotRatings(MovieHandler ratings, BaselinePredictor baseline) {
+        int N = ratings.getNumUsers();
+        this.ratedMovies = new int[N][];
+        this.centredRatings = new double[N][];
+        for (int u = 0; u < N; u++) {
+            List<MovieRating> userRatings = ratings.getUsersToRatings().get(ratings.getUserIDs().get(u));
+            int[] movies = new int[userRatings.size()];
+            double[] centred = new double[userRatings.size()];
+            for (int i = 0; i < movies.length; i++) {
+                MovieRating r = userRatings.get(i);
+                movies[i] = r.getMovieID();
+                centred[i] = r.getRating() - ((baseline != null) ? baseline.predict(u, r.getMovieID()) : this.userAvgRatings[u]);
+            }
+            this.ratedMovies[u] = movies;
+            this.centredRatings[u] = centred;
+        }
     }
 
     /**
      * Computes the Pearson's product-moment correlation coefficient between
      * the ratings of two users. It reads the user ids from class attributes
      * rather than function parameters (skeletons cannot be modified)
+     * The ratings are centred on the user means.
+     * Not thread safe, see correlation(userA, userB).
      *
      * Returns {@code NaN} if the correlation coefficient is not defined.
      *
@@ -151,8 +396,11 @@ public class PearsonsCorrelation {
         double yAvg = setUserAvgRating(this.currentUser2, yRatings);
         double cov = 0, xVar = 0, yVar = 0;
         int common = 0;
-        for (MovieRating ratingX:  xRatings){
-            for (MovieRating ratingY: yRatings){
+        // indexed loops: for-each would create an iterator for every inner loop
+        for (int i = 0; i < xRatings.size(); i++){
+            MovieRating ratingX = xRatings.get(i);
+            for (int j = 0; j < yRatings.size(); j++){
+                MovieRating ratingY = yRatings.get(j);
                 if (ratingX.getMovieID() == ratingY.getMovieID()) {
                     common++;
                     double xErr = ratingX.getRating() - xAvg;
@@ -164,6 +412,49 @@ public class PearsonsCorrelation {
                 }
             }
         }
+        return correlation(common, cov, xVar, yVar);
+    }
+
+    /**
+     * Computes the Pearson's correlation coefficient between two users of the
+     * training data, as they were at construction: the ratings are copied then,
+     * centred on the user means or on the baseline. Only reads state that is fixed
+     * at construction, so it can be called by many threads at once, also while
+     * ratings are added to the MovieHandler.
+     *
+     * @param userA internal id of the first user
+     * @param userB internal id of the second user
+     * @return Pearson's correlation coefficient, NaN if it is not defined
+     */
+    public double correlation(int userA, int userB) {
+        int[] xMovies = this.ratedMovies[userA];
+        int[] yMovies = this.ratedMovies[userB];
+        double[] xErrs = this.centredRatings[userA];
+        double[] yErrs = this.centredRatings[userB];
+        double cov = 0, xVar = 0, yVar = 0;
+        int common = 0;
+        for (int i = 0; i < xMovies.length; i++){
+            for (int j = 0; j < yMovies.length; j++){
+                if (xMovies[i] == yMovies[j]) {
+                    common++;
+                    cov += xErrs[i] * yErrs[j];
+                    xVar += Math.pow(xErrs[i], 2);
+                    yVar += Math.pow(yErrs[j], 2);
+                    break;  // movieIDs are unique per user. Once two match, search the next one (continue the outer loop)
+                }
+            }
+        }
+        return correlation(common, cov, xVar, yVar);
+    }
+
+    /**
+     * @param common number of movies both users rated
+     * @param cov sum of the products of the centred ratings of these movies
+     * @param xVar sum of the squared centred ratings of the first user
+     * @param yVar same for the second user
+     * @return the correlation, NaN if it is not defined
+     */
+    private static double correlation(int common, double cov, double xVar, double yVar) {
         /* TODO:
         * Add significance (t-test)
         * Add minimal common films
@@ -186,13 +477,14 @@ public class PearsonsCorrelation {
 
     /**
      * Retrieves user average rating if it was calculated previously, and calculates it and stores
-     * if necessary
+     * if necessary. Not thread safe: instances built from a MovieHandler have all
+     * averages already, use getUserAvgRating.
      * @param user internal id of user that ratings belongs to
      * @return the avg rating for that user
      */
     public double setUserAvgRating(int user, List<MovieRating> ratings){
         double avg;
-        if (this.userAvgRatings[user] == null){  //avg non existent: calculate it
+        if (Double.isNaN(this.userAvgRatings[user])){  //avg non existent: calculate it
             //avg = ratings.stream().mapToDouble(MovieRating::getRating).average().getAsDouble();
             avg = meanRating(ratings);
             this.userAvgRatings[user] = avg;
@@ -205,7 +497,7 @@ public class PearsonsCorrelation {
     /**
      * Calculates the mean rating for a list of movies. Used to get an user mean rating
      */
-    private double meanRating(List<MovieRating> ratings) {
+    private static double meanRating(List<MovieRating> ratings) {
         double sum = 0;
         for (MovieRating r: ratings) {
             sum += r.getRating();
@@ -214,11 +506,52 @@ public class PearsonsCorrelation {
     }
 
     /**
-     * Returns a set with all neighbors from an user
+     * Returns a read-only set with all neighbors from an user. Once the matrix is
+     * built, this decodes the neighbourhood into a new set on every call: a slow
+     * path for tests and tools, use getCompactNeighborhood elsewhere.
      * @param userID internal ID
      */
     public Set<Neighbor> getUserNeighborhood (int userID) {
-        return this.corr.get(userID);
+        if (this.neighborhoods == null) {  // still building
+            Set<Neighbor> neighbors = this.corr.get(userID);
+            return (neighbors == null) ? null : Collections.unmodifiableSet(neighbors);
+        }
+        CompactNeighborhood neighbors = this.neighborhoods[userID];
+        return (neighbors == null) ? null : Collections.unmodifiableSet(neighbors.toSet());
+    }
+
+    /**
+     * Returns the neighbourhood of an user without decoding it, preferred in hot paths
+     * @param userID internal ID
+     * @return the neighbourhood, null if the user has no neighbors or was added to the
+     * ratings after the matrix was built (see MovieHandler.putRating)
+     */
+    public CompactNeighborhood getCompactNeighborhood (int userID) {
+        return (userID < this.neighborhoods.length) ? this.neighborhoods[userID] : null;
+    }
+
+    /**
+     * @return a list of N empty (null) neighbourhoods
+     */
+    private static List<Set<Neighbor>> newNeighborhoodList(int N) {
+        return new ArrayList<>(Collections.<Set<Neighbor>>nCopies(N, null));
+    }
+
+    /**
+     * Replaces the sets of neighbors by their compact encoding. Similarities are
+     * rounded to 4 decimals, as in the matrix file.
+     */
+    void compact() {
+        this.neighborhoods = new CompactNeighborhood[this.numUsers];
+        long bytes = 0;
+        for (int user = 0; user < this.numUsers; user++) {
+            if (this.corr.get(user) == null) continue;
+            CompactNeighborhood neighbors = CompactNeighborhood.of(this.corr.get(user));
+            this.neighborhoods[user] = neighbors;
+            bytes += neighbors.getSizeInBytes();
+        }
+        this.corr = null;
+        System.out.println("Neighbourhoods take " + bytes / 1024 + " KB");
     }
 
 
@@ -227,28 +560,34 @@ public class PearsonsCorrelation {
      * if it is possible. Also creates a neighborhood if necessary
      * If neighbourhood is bigger than k, least similar neighbour is removed
      * Therefore, complexity is O(kN). Could be reduced using a Heap Sort
+     * This is not an exact top k: the least similar neighbour is chosen by absolute
+     * similarity but compared by signed similarity, so which neighbors are kept
+     * depends on the order in which they are added.
+     * The Neighbor is only created if it is stored.
      * @param userId internal id of user whose neighborhood will be modified
-     * @param newNeighbor neighbor to add
+     * @param neighborId internal id of the neighbor to add
+     * @param sim similarity with the neighbor to add
      * @param k max size of the neighbourhood
      */
-    private void addNeighbor(int userId, Neighbor newNeighbor, int k) {
+    private void addNeighbor(int userId, int neighborId, double sim, int k) {
+        Set<Neighbor> neighborhood = this.corr.get(userId);
         // create new neighborhood if it doesn't exist
-        if (this.corr.get(userId) == null ) {
-            Set<Neighbor> neighborhood = new HashSet<>();
-            neighborhood.add(newNeighbor);
-            this.corr.put(userId, neighborhood);
+        if (neighborhood == null) {
+            neighborhood = new HashSet<>();
+            neighborhood.add(new Neighbor(neighborId, sim));
+            this.corr.set(userId, neighborhood);
         // if k limit is reached, check if something can be removed
-        } else if (getUserNeighborhood(userId).size() >= k) {
-            Neighbor leastSim = getLeastSimilarNeighbour(getUserNeighborhood(userId));
+        } else if (neighborhood.size() >= k) {
+            Neighbor leastSim = getLeastSimilarNeighbour(neighborhood);
             // remove leastSim if similarity is lower than the new neighbor
             // do nothing if new neighbor is les similar
-            if (leastSim.compareTo(newNeighbor) < 0) {
-                this.corr.get(userId).remove(leastSim);
-                this.corr.get(userId).add(newNeighbor);
+            if (leastSim.getSimilarity() < sim) {
+                neighborhood.remove(leastSim);
+                neighborhood.add(new Neighbor(neighborId, sim));
             }
          // neighborhood exists, and size is not exceeded
         } else {
-            this.corr.get(userId).add(newNeighbor);
+            neighborhood.add(new Neighbor(neighborId, sim));
         }
     }
 
@@ -260,28 +599,38 @@ public class PearsonsCorrelation {
     public Neighbor getLeastSimilarNeighbour (Set<Neighbor> neighbors) {
         //start by max possible value
         double leastSim = Double.MAX_VALUE;
-        int leastID = 1000;
+        Neighbor least = null;
         for (Neighbor n: neighbors) {
             //Why abs? Because strong dissimilarity is more informative than
             //weak similarity. Tested, and improves results slightly
             if (Math.abs(n.getSimilarity()) < leastSim) {
                 leastSim = n.getSimilarity();
-                leastID = n.getUserID();
+                least = n;
             }
         }
-        return new Neighbor(leastID, leastSim);
+        // the stored neighbor itself: no copy needed
+        return (least == null) ? new Neighbor(1000, leastSim) : least;
     }
 
 
     /**
-     * Returns an user avg rating, calculated already during class construction
+     * @return number of users (rows) of the matrix
+     */
+    public int getNumUsers() {
+        return this.numUsers;
+    }
+
+    /**
+     * Returns an user avg rating, calculated already during class construction.
+     * Users added to the ratings afterwards get their current average.
      * @param userID
      * @return NaN if non existent, the avg rating if it exists
      */
     public double getUserAvgRating(int userID) {
-        if (this.userAvgRatings[userID] == null)
-            return Double.NaN;
-        else return this.userAvgRatings[userID];
+        if (userID >= this.userAvgRatings.length) {
+            return (this.ratings == null) ? Double.NaN : this.ratings.getUserAverageRating(userID);
+        }
+        return this.userAvgRatings[userID];
     }
 
 
@@ -295,8 +644,8 @@ public class PearsonsCorrelation {
     public double get(int i, int j) {
         if (i == j) return 1; //  avoids unnecessary calculation
         // get the internal ids
-        int ID1 = this.userIDs.indexOf(i);
-        int ID2 = this.userIDs.indexOf(j);
+        int ID1 = this.ratings.getInternalUserID(i);
+        int ID2 = this.ratings.getInternalUserID(j);
         // return only the upper right triangle (bottom left is empty)
         return getInternal(ID1, ID2);
     }
@@ -310,16 +659,9 @@ public class PearsonsCorrelation {
      */
     private double getInternal(int i, int j) {
         if (i == j) return 1;
-        Set<Neighbor> neighbors = corr.get(i);
+        CompactNeighborhood neighbors = this.neighborhoods[i];
         if (neighbors == null) return Double.NaN;  // if neighborhood is empty
-        //.contains: complexity O(1)
-        // often user pairs are not neighbours, so checking first prevents looping
-        if (!neighbors.contains(new Neighbor(j, 0)))
-            return Double.NaN;
-        for (Neighbor n: neighbors){
-            if (n.getUserID() == j) return n.getSimilarity();
-        }
-        return Double.NaN; // should never be reached
+        return neighbors.getSimilarity(j);
     }
 
 
@@ -330,7 +672,10 @@ public class PearsonsCorrelation {
      * The resulting file contains the full nb_users x nb_users correlation
      * matrix, such that the value on position (row_i, col_j) corresponds to
      * the correlation between the user with internal id i and the user with
-     * internal id j. The values are separated by commas and rounded to four
+     * internal id j. If the users were reordered, i and j are the sorted indices
+     * (see MovieHandler.toSortedIndex), so the file does not depend on the order
+     * used to build it, as long as the build keeps all neighbors (see addNeighbor).
+     * The values are separated by commas and rounded to four
      * decimal digits. The actual matrix starts on line 3. The first line
      * contains a single integer which defines the size of the matrix. The
      * second line is reserved for additional parameter values which where
@@ -353,7 +698,7 @@ public class PearsonsCorrelation {
         } catch (IOException e) {
             e.printStackTrace();
         }
-        int N = this.userIDs.size();
+        int N = this.numUsers;
         DecimalFormat df = getDecimalFormat();
         long start = System.currentTimeMillis();
 
@@ -367,10 +712,19 @@ public class PearsonsCorrelation {
             bw.write("param1=raul,param2=vazquez");
             bw.newLine();
 
-            // row and col correspond to users internal ID's
+            // row and col correspond to users internal ID's (sorted indices)
+            double[] rowValues = new double[N];
             for (int row = 0; row < N; row++){
+                    // decode the neighbourhood once per row instead of once per cell
+                    Arrays.fill(rowValues, Double.NaN);
+                    CompactNeighborhood neighbors = this.neighborhoods[fromSortedIndex(row)];
+                    if (neighbors != null) {
+                        CompactNeighborhood.Cursor c = neighbors.cursor();
+                        while (c.next()) rowValues[toSortedIndex(c.getUserID())] = c.getSimilarity();
+                    }
+                    rowValues[row] = 1;
                     for (int col = 0; col < N; col++) {
-                        double corr = this.getInternal(row, col);
+                        double corr = rowValues[col];
                         String toWrite = Double.isNaN(corr) ? "NaN" : df.format(corr);
                         bw.write(toWrite);
                         // Always append a comma, except on the last column
@@ -419,23 +773,223 @@ public class PearsonsCorrelation {
             br = new BufferedReader(new FileReader(filename));
             String line;
             int N = Integer.parseInt(br.readLine());
-            this.corr = new HashMap<>(N);
+            this.numUsers = N;
+            this.corr = newNeighborhoodList(N);
             String params = br.readLine();
             for (int userID = 0; userID < N; userID ++) { //N lines will be read
                 line = br.readLine();
                 Set<Neighbor> neighbors = parseLine(line, userID, N);
-                this.corr.put(userID, neighbors);
+                if (isReordered()) neighbors = remap(neighbors, false);
+                this.corr.set(fromSortedIndex(userID), neighbors);
             }
             br.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
+        compact();
         long elapsedTimeMillis = System.currentTimeMillis() - start;
         DecimalFormat df = getDecimalFormat();
         System.out.println("Done, took " + df.format(elapsedTimeMillis/(1000F)) + " seconds");
         System.out.println("==========================");
     }
 
+    /**
+     * Writes the neighbourhoods into a binary file, in their compact encoding.
+     * Much smaller and faster to load than the matrix file, which contains all the
+     * NaN's. The file starts with the NEIGHBORHOOD_MAGIC number and the number of users,
+     * followed by a flag per user that tells whether a neighbourhood follows.
+     *
+     * @param filename Path to the output file.
+     * @see CompactNeighborhood
+     */
+    public void writeNeighborhoods(String filename) {
+        long start = System.currentTimeMillis();
+        System.out.println("Writing neighbourhoods...");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+            out.writeInt(NEIGHBORHOOD_MAGIC);
+            out.writeInt(this.numUsers);
+            for (int index = 0; index < this.numUsers; index++) {
+                CompactNeighborhood neighbors = this.neighborhoods[fromSortedIndex(index)];
+                out.writeBoolean(neighbors != null);
+                if (neighbors == null) continue;
+                if (isReordered()) neighbors = CompactNeighborhood.of(remap(neighbors.toSet(), true));
+                neighbors.write(out);
+            }
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        long elapsedTimeMillis = System.currentTimeMillis() - start;
+        System.out.println("Done, took " + elapsedTimeMillis/1000F + " seconds");
+        System.out.println("==========================");
+    }
+
+    /**
+     * Reads the neighbourhoods from a file written by writeNeighborhoods
+     *
+     * @param filename Path to the input file.
+     */
+    public void readNeighborhoods(String filename) {
+        long start = System.currentTimeMillis();
+        System.out.println("Reading neighbourhoods file...");
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+            if (in.readInt() != NEIGHBORHOOD_MAGIC)
+                throw new IOException(filename + " is not a neighbourhoods file");
+            this.numUsers = in.readInt();
+            this.neighborhoods = new CompactNeighborhood[this.numUsers];
+            for (int index = 0; index < this.numUsers; index++) {
+                if (!in.readBoolean()) continue;
+                CompactNeighborhood neighbors = CompactNeighborhood.read(in);
+                if (isReordered()) neighbors = CompactNeighborhood.of(remap(neighbors.toSet(), false));
+                this.neighborhoods[fromSortedIndex(index)] = neighbors;
+            }
+            in.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        long elapsedTimeMillis = System.currentTimeMillis() - start;
+        System.out.println("Done, took " + elapsedTimeMillis/1000F + " seconds");
+        System.out.println("==========================");
+    }
+
+    /**
+     * @return true if the internal ids differ from the sorted indices used in files
+     */
+    private boolean isReordered() {
+        return this.ratings != null && this.ratings.isReordered();
+    }
+
+    private int toSortedIndex(int user) {
+        return (this.ratings == null) ? user : this.ratings.toSortedIndex(user);
+    }
+
+    private int fromSortedIndex(int index) {
+        return (this.ratings == null) ? index : this.ratings.fromSortedIndex(index);
+    }
+
+    /**
+     * Translates the ids of a set of neighbors between internal ids and sorted indices
+     * @param toSorted true to translate internal ids to sorted indices, false for the inverse
+     */
+    private Set<Neighbor> remap(Set<Neighbor> neighbors, boolean toSorted) {
+        Set<Neighbor> remapped = new HashSet<>(2 * neighbors.size());
+        for (Neighbor n: neighbors) {
+            int id = toSorted ? toSortedIndex(n.getUserID()) : fromSortedIndex(n.getUserID());
+            remapped.add(new Neighbor(id, n.getSimilarity()));
+        }
+        return remapped;
+    }
+
+    /**
+     * Tells binary neighbourhood files apart from matrix files, which start with a digit
+     */
+    static boolean isNeighborhoodFile(String filename) {
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(filename));
+            int magic = in.readInt();
+            in.close();
+            return magic == NEIGHBORHOOD_MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the (partial) neighbourhoods of a shard to a file, one neighbor per line.
+     * Unlike the matrix file, similarities are not rounded, so the merge compares
+     * the same values as a single process would. Keeping all neighbors, the merged
+     * matrix is identical to a single process build.
+     * The first line contains the size of the matrix, the second one the parameters.
+     * Other lines contain internal user id, internal neighbor id and similarity, as
+     * sorted indices like in the matrix file. E.g.:
+     *  3
+     *  shard=0,numShards=2
+     *  0,1,-0.36502380927
+     *  1,0,-0.36502380927
+     *
+     * @param filename Path to the shard file.
+     */
+    public void writeShard(String filename) {
+        long start = System.currentTimeMillis();
+        System.out.println("Writing shard...");
+        try {
+            BufferedWriter bw = new BufferedWriter(new FileWriter(filename, false));
+            bw.write(Integer.toString(this.numUsers));
+            bw.newLine();
+            bw.write("shard=" + this.shard + ",numShards=" + this.numShards);
+            bw.newLine();
+            for (int user = 0; user < this.numUsers; user++) {
+                Set<Neighbor> hood = getUserNeighborhood(user);
+                if (hood == null) continue;
+                for (Neighbor n: hood) {
+                    bw.write(toSortedIndex(user) + "," + toSortedIndex(n.getUserID()) + "," + n.getSimilarity());
+                    bw.newLine();
+                }
+            }
+            bw.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        long elapsedTimeMillis = System.currentTimeMillis() - start;
+        System.out.println("Done, took " + elapsedTimeMillis/1000F + " seconds");
+        System.out.println("==========================");
+    }
+
+    /**
+     * Adds the neighbors of a shard file to the neighbourhoods. The first file read
+     * sets the size of the matrix and the number of shards, the next ones must match.
+     * @param filename Path to the shard file
+     * @param kNeighbors max size of the neighbourhoods, 0 to keep all neighbors
+     * @return index of the shard, from its header
+     * @see this.writeShard
+     */
+    private int readShard(String filename, int kNeighbors) {
+        int shard = -1;
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(filename));
+            int N = Integer.parseInt(br.readLine());
+            // shard=0,numShards=2
+            String params = br.readLine();
+            String[] header = (params == null) ? new String[0] : params.split(",");
+            if (header.length != 2 || !header[0].startsWith("shard=") || !header[1].startsWith("numShards=")) {
+                throw new IllegalArgumentException("Shard " + filename + " has no shard header: " + params);
+            }
+            shard = Integer.parseInt(header[0].substring("shard=".length()));
+            int numShards = Integer.parseInt(header[1].substring("numShards=".length()));
+            if (this.corr == null) {
+                this.numUsers = N;
+                this.numShards = numShards;
+                this.corr = newNeighborhoodList(N);
+            } else if (N != this.numUsers) {
+                throw new IllegalArgumentException("Shard " + filename + " has " + N
+                        + " users, expected " + this.numUsers);
+            } else if (numShards != this.numShards) {
+                throw new IllegalArgumentException("Shard " + filename + " is one of " + numShards
+                        + " shards, expected " + this.numShards);
+            }
+            if (shard < 0 || shard >= numShards) {
+                throw new IllegalArgumentException("Shard " + filename + " has index " + shard
+                        + ", expected 0 to " + (numShards - 1));
+            }
+            int k = (kNeighbors > 0) ? kNeighbors : N;
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] tokens = line.split(",");
+                int user = Integer.parseInt(tokens[0]);
+                int neighbor = Integer.parseInt(tokens[1]);
+                double sim = Double.parseDouble(tokens[2]);
+                addNeighbor(user, neighbor, sim, k);
+            }
+            br.close();
+        } catch (IOException e) {
+            // same as an incomplete merge, rather than a matrix with holes
+            throw new IllegalArgumentException("Can't read shard " + filename, e);
+        }
+        return shard;
+    }
+
     /**
      * Extracts the neighborhood of the user given by matrixLine
      * @param matrixLine string containing comma separated values with correlations
@@ -468,6 +1022,16 @@ public class PearsonsCorrelation {
         String trainingFile = "";
         String outputFile = "";
         int kNeighbors = 0;
+        int shard = 0;
+        int numShards = 1;
+        String shardFiles = null;
+        String neighborhoodFile = null;
+        boolean baselineCentring = false;
+        boolean reorderUsers = false;
+        int lshRows = 0;
+        int lshBands = 0;
+        double lshCollisionProbability = 0.9;
+        double lshSimilarity = 0.1;
 
         int i = 0;
         while (i < args.length && args[i].startsWith("-")) {
@@ -478,19 +1042,62 @@ public class PearsonsCorrelation {
                 outputFile = args[i+1];
             } else if(arg.equals("-kNeighbors")) {
                 kNeighbors = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-shard")) {
+                shard = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-numShards")) {
+                numShards = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-reorderUsers")) {
+                reorderUsers = true;
+                i--;  // flag without value
+            } else if(arg.equals("-baselineCentring")) {
+                baselineCentring = true;
+                i--;  // flag without value
+            } else if(arg.equals("-neighborhoodFile")) {
+                neighborhoodFile = args[i+1];
+            } else if(arg.equals("-mergeShards")) {
+                shardFiles = args[i+1];
+            } else if(arg.equals("-lshRows")) {
+                lshRows = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-lshBands")) {
+                lshBands = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-lshCollisionProbability")) {
+                lshCollisionProbability = Double.parseDouble(args[i+1]);
+            } else if(arg.equals("-lshSimilarity")) {
+                lshSimilarity = Double.parseDouble(args[i+1]);
             }
             // ADD ADDITIONAL PARAMETERS //
             i += 2;
         }
 
-        MovieHandler ratings = new MovieHandler(trainingFile);
         PearsonsCorrelation matrix;
-        if (kNeighbors > 0)
-            matrix = new PearsonsCorrelation(ratings, kNeighbors);
-        else
-            matrix = new PearsonsCorrelation(ratings);
+        if (shardFiles != null) {
+            // merge step: no training data needed
+            matrix = new PearsonsCorrelation(Arrays.asList(shardFiles.split(",")), kNeighbors);
+        } else {
+            MovieHandler ratings = new MovieHandler(trainingFile, reorderUsers);
+            if (reorderUsers && kNeighbors > 0) {
+                System.out.println("Note: with -kNeighbors, a reordered build may keep other neighbors (see addNeighbor)");
+            }
+            int k = (kNeighbors > 0) ? kNeighbors : ratings.getNumUsers();
+            BaselinePredictor baseline = baselineCentring ? ratings.getBaseline() : null;
+            MinHashLSH lsh = null;
+            if (lshRows > 0) {
+                // approximate build, only on MinHash candidate pairs
+                if (lshBands <= 0) {
+                    lshBands = MinHashLSH.bandsForCollisionProbability(lshRows, lshSimilarity, lshCollisionProbability);
+                }
+                lsh = new MinHashLSH(ratings, lshBands, lshRows, 42);
+            }
+            matrix = new PearsonsCorrelation(ratings, k, shard, numShards, lsh, baseline);
+            if (numShards > 1) {
+                matrix.writeShard(outputFile);
+                return;
+            }
+        }
 
         matrix.writeCorrelationMatrix(outputFile);
+        // the compact file can be given to MovieRunner as -matrixFile instead of the matrix
+        if (neighborhoodFile != null) matrix.writeNeighborhoods(neighborhoodFile);
     }
 
 }
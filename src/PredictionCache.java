@@ -0,0 +1,240 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-bounded cache of predicted ratings, shared by concurrent predictions.
+ *
+ * Keys are primitive longs, see key(): no boxing on lookups. The cache is split
+ * in segments, each locked on its own, with a fixed number of slots and a
+ * linear probing index into them. When a segment is full, the slot to reuse is
+ * chosen by CLOCK: the hand sweeps the slots, clearing the referenced bit of the
+ * entries that were read since the last sweep, and evicts the first entry that
+ * was not.
+ *
+ * Each ModelGeneration has its own cache. A generation never changes once it
+ * serves, so cached predictions stay valid until the cache is dropped with it.
+ */
+public class PredictionCache {
+
+    private static final int NUM_SEGMENTS = 16;  // power of 2
+
+    private final Segment[] segments = new Segment[NUM_SEGMENTS];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity max number of cached predictions (rounded up to a multiple of the segments)
+     */
+    public PredictionCache(int capacity) {
+        int segmentCapacity = Math.max(1, (capacity + NUM_SEGMENTS - 1) / NUM_SEGMENTS);
+        for (int s = 0; s < NUM_SEGMENTS; s++) {
+            segments[s] = new Segment(segmentCapacity);
+        }
+    }
+
+    /**
+     * @param userID true user ID
+     * @param movieID true movie ID
+     * @return the cache key of the pair: user in the high 32 bits, movie in the low ones
+     */
+    public static long key(int userID, int movieID) {
+        return ((long) userID << 32) | (movieID & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Spreads the bits of a key (finalizer of MurmurHash3): the top bits choose
+     * the segment, the bottom ones the position in its index
+     */
+    private static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private Segment segment(long hash) {
+        return segments[(int) (hash >>> 60) & (NUM_SEGMENTS - 1)];
+    }
+
+    /**
+     * Looks up a prediction and counts the hit or miss
+     * @return the cached prediction, NaN if it is not cached
+     */
+    public double get(long key) {
+        long hash = hash(key);
+        double value = segment(hash).get(key, hash);
+        if (Double.isNaN(value)) misses.increment();
+        else hits.increment();
+        return value;
+    }
+
+    /**
+     * Same as get, without counting it nor marking the entry as used
+     */
+    public boolean contains(long key) {
+        long hash = hash(key);
+        return segment(hash).contains(key, hash);
+    }
+
+    /**
+     * Stores a prediction, evicting another one if the segment is full
+     */
+    public void put(long key, double value) {
+        long hash = hash(key);
+        if (segment(hash).put(key, hash, value)) evictions.increment();
+    }
+
+    /**
+     * Drops all predictions. Metrics are kept.
+     */
+    public void clear() {
+        for (Segment segment: segments) {
+            segment.clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return hits / lookups, NaN before the first lookup
+     */
+    public double getHitRatio() {
+        long h = getHits();
+        long lookups = h + getMisses();
+        return (lookups == 0) ? Double.NaN : (double) h / lookups;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment: segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "hit ratio " + getHitRatio() + " (" + getHits() + " hits, " + getMisses() + " misses, "
+                + getEvictions() + " evictions)";
+    }
+
+    /**
+     * Fixed number of slots plus an open addressing index (slot + 1, 0 if empty)
+     * of twice the size, to keep the probe sequences short
+     */
+    private static final class Segment {
+        private final long[] keys;
+        private final double[] values;
+        private final boolean[] referenced;
+        private final int[] index;
+        private final int mask;
+        private int size = 0;
+        private int hand = 0;
+
+        Segment(int capacity) {
+            keys = new long[capacity];
+            values = new double[capacity];
+            referenced = new boolean[capacity];
+            index = new int[Integer.highestOneBit(2 * capacity - 1) << 1];
+            mask = index.length - 1;
+        }
+
+        /**
+         * @return position of the key in the index, or of the empty entry where it would go
+         */
+        private int find(long key, long hash) {
+            int i = (int) hash & mask;
+            while (index[i] != 0 && keys[index[i] - 1] != key) i = (i + 1) & mask;
+            return i;
+        }
+
+        synchronized double get(long key, long hash) {
+            int slot = index[find(key, hash)] - 1;
+            if (slot < 0) return Double.NaN;
+            referenced[slot] = true;
+            return values[slot];
+        }
+
+        synchronized boolean contains(long key, long hash) {
+            return index[find(key, hash)] != 0;
+        }
+
+        /**
+         * @return true if an entry was evicted
+         */
+        synchronized boolean put(long key, long hash, double value) {
+            int i = find(key, hash);
+            if (index[i] != 0) {
+                values[index[i] - 1] = value;
+                return false;
+            }
+            boolean evicted = false;
+            int slot;
+            if (size < keys.length) {
+                slot = size++;
+            } else {
+                // CLOCK: give the referenced entries a second chance
+                while (referenced[hand]) {
+                    referenced[hand] = false;
+                    hand = (hand + 1) % keys.length;
+                }
+                slot = hand;
+                hand = (hand + 1) % keys.length;
+                remove(keys[slot]);
+                evicted = true;
+                i = find(key, hash);  // removing shifted the index
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            referenced[slot] = false;
+            index[i] = slot + 1;
+            return evicted;
+        }
+
+        /**
+         * Removes a key from the index. The entries after it in the probe sequence
+         * are shifted back, so lookups never stop early at the hole.
+         */
+        private void remove(long key) {
+            int hole = find(key, hash(key));
+            int i = hole;
+            while (true) {
+                i = (i + 1) & mask;
+                if (index[i] == 0) break;
+                int home = (int) hash(keys[index[i] - 1]) & mask;
+                // the entry can move to the hole if its home is not between the hole and i
+                boolean between = (hole <= i) ? (hole < home && home <= i) : (hole < home || home <= i);
+                if (!between) {
+                    index[hole] = index[i];
+                    hole = i;
+                }
+            }
+            index[hole] = 0;
+        }
+
+        synchronized void clear() {
+            Arrays.fill(index, 0);
+            Arrays.fill(referenced, false);
+            size = 0;
+            hand = 0;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+    }
+}
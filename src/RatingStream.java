@@ -0,0 +1,239 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tails a growing ratings log and applies the new ratings to a MovieHandler
+ * in micro-batches, without reloading the file.
+ *
+ * Lines have the same format as the training files:
+ *      userID::movieID::rating::timestamp
+ * Every poll reads the complete lines that were appended since the last one
+ * (at most batchSize), applies them in timestamp order and notifies the
+ * listeners with the changes of the batch. A line that is still being written
+ * (no line break yet) is picked up by the next poll. A rating that is older
+ * than the one already stored for the user and movie (it arrives late) is
+ * skipped, see MovieHandler.putRating.
+ *
+ * The MovieHandler is updated by the thread that runs the stream, see
+ * MovieHandler.putRating. Listeners are called on that thread as well, so they
+ * can take a snapshot of it, e.g. to publish the ratings with
+ * MovieRunner.publishRatings. The MovieHandler must not be the one of a
+ * serving generation.
+ */
+public class RatingStream implements Runnable {
+
+    /**
+     * A rating that was added or updated by the stream
+     */
+    public static final class Change {
+        private final int userID;
+        private final int movieID;
+        private final double rating;
+        private final double previousRating;
+        private final long timestamp;
+
+        Change(int userID, int movieID, double rating, double previousRating, long timestamp) {
+            this.userID = userID;
+            this.movieID = movieID;
+            this.rating = rating;
+            this.previousRating = previousRating;
+            this.timestamp = timestamp;
+        }
+
+        /** @return true user ID */
+        public int getUserID() {
+            return userID;
+        }
+
+        /** @return true movie ID */
+        public int getMovieID() {
+            return movieID;
+        }
+
+        public double getRating() {
+            return rating;
+        }
+
+        /** @return the rating before the change, NaN if the rating is new */
+        public double getPreviousRating() {
+            return previousRating;
+        }
+
+        public boolean isInsert() {
+            return Double.isNaN(previousRating);
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public String toString() {
+            return "[User: " + userID + ", Movie: " + movieID + ", Rating: " + previousRating + " -> " + rating + "]";
+        }
+    }
+
+    /**
+     * Gets notified of every applied micro-batch
+     */
+    public interface Listener {
+        /**
+         * Called after a batch was applied to the MovieHandler
+         * @param changes the changes of the batch, in timestamp order
+         */
+        void onRatingsChanged(List<Change> changes);
+    }
+
+    private final MovieHandler ratings;
+    private final String logFile;
+    private final int batchSize;
+    private final long pollMillis;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private long position = 0;  // offset in the log after the last line that was read
+    private volatile boolean running = true;
+
+    /**
+     * @param ratings the rating store to update
+     * @param logFile path to the ratings log
+     * @param batchSize max number of ratings applied at once
+     * @param pollMillis time to wait for new lines when the log has no new lines
+     */
+    public RatingStream(MovieHandler ratings, String logFile, int batchSize, long pollMillis) {
+        this.ratings = ratings;
+        this.logFile = logFile;
+        this.batchSize = batchSize;
+        this.pollMillis = pollMillis;
+    }
+
+    /**
+     * Starts reading the log at the given offset, e.g. its length to skip the
+     * ratings that were already loaded
+     */
+    public void seek(long position) {
+        this.position = position;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Polls the log until stop() is called
+     */
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                if (poll() == 0) Thread.sleep(pollMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Reads, applies and publishes one micro-batch
+     * @return the number of ratings read, also the stale ones that were skipped
+     */
+    public int poll() throws IOException {
+        List<Change> batch = readBatch();
+        if (batch.isEmpty()) return 0;
+        // stable sort: ratings with the same timestamp keep the order of the log
+        batch.sort((r1, r2) -> Long.compare(r1.timestamp, r2.timestamp));
+
+        List<Change> changes = new ArrayList<>(batch.size());
+        for (Change r: batch) {
+            MovieRating previous = ratings.putRating(r.userID, r.movieID, r.rating, r.timestamp);
+            if (previous != null && previous.getTimestamp() > r.timestamp) continue;  // stale
+            changes.add(new Change(r.userID, r.movieID, r.rating,
+                    (previous == null) ? Double.NaN : previous.getRating(), r.timestamp));
+        }
+        ratings.commitRatings();
+        if (!changes.isEmpty()) {
+            List<Change> published = Collections.unmodifiableList(changes);
+            for (Listener listener: listeners) {
+                listener.onRatingsChanged(published);
+            }
+        }
+        return batch.size();
+    }
+
+    /**
+     * Reads up to batchSize complete lines from the current position
+     * @return the ratings that were read, previous ratings are not known yet
+     */
+    private List<Change> readBatch() throws IOException {
+        List<Change> batch = new ArrayList<>();
+        RandomAccessFile raf = new RandomAccessFile(logFile, "r");
+        try {
+            long length = raf.length();
+            if (length < position) position = 0;  // log was truncated: start over
+            raf.seek(position);
+            byte[] buffer = new byte[(int) Math.min(length - position, 1 << 20)];
+            raf.readFully(buffer);
+            int lineStart = 0;
+            for (int i = 0; i < buffer.length && batch.size() < batchSize; i++) {
+                if (buffer[i] != '\n') continue;
+                String line = new String(buffer, lineStart, i - lineStart, StandardCharsets.US_ASCII).trim();
+                lineStart = i + 1;
+                if (line.isEmpty()) continue;
+                String[] tokens = line.split("::|\t");
+                long timestamp = (tokens.length > 3) ? Long.parseLong(tokens[3]) : 0;
+                batch.add(new Change(Integer.parseInt(tokens[0]), Integer.parseInt(tokens[1]),
+                        Double.parseDouble(tokens[2]), Double.NaN, timestamp));
+            }
+            position += lineStart;
+        } finally {
+            raf.close();
+        }
+        return batch;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String trainingFile = "";
+        String logFile = "";
+        int batchSize = 1000;
+        long pollMillis = 1000;
+
+        int i = 0;
+        while (i < args.length && args[i].startsWith("-")) {
+            String arg = args[i];
+            if(arg.equals("-trainingFile")) {
+                trainingFile = args[i+1];
+            } else if(arg.equals("-logFile")) {
+                logFile = args[i+1];
+            } else if(arg.equals("-batchSize")) {
+                batchSize = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-pollMillis")) {
+                pollMillis = Long.parseLong(args[i+1]);
+            }
+            i += 2;
+        }
+
+        MovieHandler ratings = new MovieHandler(trainingFile);
+        RatingStream stream = new RatingStream(ratings, logFile, batchSize, pollMillis);
+        stream.addListener(changes -> {
+            int inserts = 0;
+            for (Change c: changes) {
+                if (c.isInsert()) inserts++;
+            }
+            System.out.println("Applied " + changes.size() + " ratings (" + inserts + " new), now "
+                    + ratings.getNumUsers() + " users and " + ratings.getNumMovies() + " movies");
+        });
+        stream.run();
+    }
+}
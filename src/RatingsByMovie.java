@@ -0,0 +1,97 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The ratings of a MovieHandler indexed by movie, in CSR layout: the users that
+ * rated internal movie m, and their ratings, are at positions
+ * getStart(m) .. getEnd(m) - 1 of getUsers() and getRatings(). Users are in
+ * increasing internal ID per movie.
+ *
+ * Built once by MovieHandler.getRatingsByMovie and shared by everything that goes
+ * over the ratings of a movie (the baseline fit, the raters of MovieMetadata and
+ * the user reordering). The index is a snapshot: ratings that are added later are
+ * not in it, nor are the ratings of movies that have no internal ID yet (see
+ * MovieHandler.commitRatings).
+ */
+public final class RatingsByMovie {
+
+    private final int[] offsets;    // by internal movie ID, numMovies + 1
+    private final int[] users;      // internal user IDs
+    private final double[] ratings;
+
+    /**
+     * Builds the index over the current ratings
+     */
+    RatingsByMovie(MovieHandler handler) {
+        int N = handler.getNumUsers();
+        int M = handler.getNumMovies();
+        offsets = new int[M + 1];
+        for (int u = 0; u < N; u++) {
+            for (MovieRating r: handler.getUsersToRatings().get(handler.getUserIDs().get(u))) {
+                int movie = handler.getInternalMovieID(r.getMovieID());
+                if (movie >= 0) offsets[movie + 1]++;
+            }
+        }
+        for (int m = 0; m < M; m++) {
+            offsets[m + 1] += offsets[m];
+        }
+        users = new int[offsets[M]];
+        ratings = new double[offsets[M]];
+        int[] fill = Arrays.copyOf(offsets, M);
+        for (int u = 0; u < N; u++) {
+            List<MovieRating> userRatings = handler.getUsersToRatings().get(handler.getUserIDs().get(u));
+            for (int i = 0; i < userRatings.size(); i++) {
+                MovieRating r = userRatings.get(i);
+                int movie = handler.getInternalMovieID(r.getMovieID());
+                if (movie < 0) continue;
+                users[fill[movie]] = u;
+                ratings[fill[movie]] = r.getRating();
+                fill[movie]++;
+            }
+        }
+    }
+
+    /**
+     * @return number of movies in the index
+     */
+    public int getNumMovies() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @return number of ratings in the index
+     */
+    public int size() {
+        return users.length;
+    }
+
+    /**
+     * @param movie internal movie ID
+     * @return start of the ratings of the movie in getUsers() and getRatings()
+     */
+    public int getStart(int movie) {
+        return offsets[movie];
+    }
+
+    /**
+     * @param movie internal movie ID
+     * @return end (exclusive) of the ratings of the movie in getUsers() and getRatings()
+     */
+    public int getEnd(int movie) {
+        return offsets[movie + 1];
+    }
+
+    /**
+     * @return internal IDs of the users that rated each movie, increasing per movie. Not a copy.
+     */
+    int[] getUsers() {
+        return users;
+    }
+
+    /**
+     * @return the ratings of getUsers(). Not a copy.
+     */
+    double[] getRatings() {
+        return ratings;
+    }
+}
@@ -0,0 +1,121 @@
+import groovy.transform.CompileStatic
+import org.junit.Test
+
+import java.lang.management.ManagementFactory
+
+/**
+ * Allocation regression tests for the hot paths: loading ratings, computing
+ * correlations (one pair and the full matrix) and predicting a rating.
+ * Each test measures the bytes allocated by the current thread and fails when
+ * they exceed a budget. Budgets are about twice what the code allocates now,
+ * in interpreted mode as well as after JIT compilation, and well below what
+ * the code allocated before (shown in the comments), so a path that starts
+ * boxing or copying again is caught.
+ *
+ * Compiled statically: dynamic Groovy would box the loop counters and the
+ * measurements would include its own allocations.
+ */
+@CompileStatic
+class AllocationBudgetTest extends GroovyTestCase {
+
+    // bytes allocated
+    static final double LOAD_BUDGET_PER_RATING = 256      // was ~1400
+    static final double CORRELATION_BUDGET_PER_PAIR = 64  // was up to ~1700
+    static final double BUILD_BUDGET_PER_PAIR = 320       // was up to ~2000
+    static final double PREDICT_BUDGET_PER_CALL = 256     // was ~450 to ~2000
+
+    static final int NUM_USERS = 300
+    static final int NUM_MOVIES = 80
+
+    static long allocatedBytes() {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()
+        return mx.getThreadAllocatedBytes(Thread.currentThread().getId())
+    }
+
+    /**
+     * Writes a deterministic ratings file, large enough for the fixed costs
+     * (e.g. the baseline) not to dominate the per rating numbers
+     * @return the number of ratings
+     */
+    static int writeRatings(File file) {
+        int count = 0
+        file.withWriter { Writer w ->
+            for (int u = 1; u <= NUM_USERS; u++) {
+                for (int m = 1; m <= NUM_MOVIES; m++) {
+                    if ((u * m + u) % 3 == 0) continue
+                    double rating = ((u * 7 + m * 13) % 9 + 1) / 2.0d
+                    w.write(u + "::" + m + "::" + rating + "::" + (978300000 + u * m) + "\n")
+                    count++
+                }
+            }
+        }
+        return count
+    }
+
+    File ratingsFile
+    int numRatings
+
+    void setUp() {
+        ratingsFile = File.createTempFile("ratings", ".txt")
+        ratingsFile.deleteOnExit()
+        numRatings = writeRatings(ratingsFile)
+    }
+
+    void tearDown() {
+        ratingsFile.delete()
+    }
+
+    @Test
+    void testLoadAllocations() {
+        new MovieHandler(ratingsFile.getPath())  // warm up
+        long start = allocatedBytes()
+        new MovieHandler(ratingsFile.getPath())
+        double perRating = (allocatedBytes() - start) / (double) numRatings
+        assertTrue("Loading allocates " + perRating + " bytes per rating", perRating < LOAD_BUDGET_PER_RATING)
+    }
+
+    @Test
+    void testCorrelationAllocations() {
+        MovieHandler ratings = new MovieHandler(ratingsFile.getPath())
+        PearsonsCorrelation p = new PearsonsCorrelation(ratings, 20)
+        int N = ratings.getNumUsers()
+        for (int u = 0; u < N; u++) p.correlation(u, (u + 1) % N)  // warm up
+        long pairs = 0
+        long start = allocatedBytes()
+        for (int u = 0; u < N; u++) {
+            for (int v = u + 1; v < Math.min(N, u + 20); v++) {
+                p.correlation(u, v)
+                pairs++
+            }
+        }
+        double perPair = (allocatedBytes() - start) / (double) pairs
+        assertTrue("Correlation allocates " + perPair + " bytes per pair", perPair < CORRELATION_BUDGET_PER_PAIR)
+    }
+
+    @Test
+    void testBuildAllocations() {
+        MovieHandler ratings = new MovieHandler(ratingsFile.getPath())
+        new PearsonsCorrelation(ratings, 20)  // warm up
+        int N = ratings.getNumUsers()
+        long start = allocatedBytes()
+        new PearsonsCorrelation(ratings, 20)
+        double perPair = (allocatedBytes() - start) / ((double) N * (N - 1) / 2)
+        assertTrue("Building the matrix allocates " + perPair + " bytes per pair", perPair < BUILD_BUDGET_PER_PAIR)
+    }
+
+    @Test
+    void testPredictAllocations() {
+        MovieHandler ratings = new MovieHandler(ratingsFile.getPath())
+        ModelGeneration model = new ModelGeneration(0, ratings, new PearsonsCorrelation(ratings, 20))
+        int[] movies = ratings.getMovieIDArray()
+        List<Integer> users = ratings.getUserIDs()
+        int calls = 10000
+        for (int i = 0; i < calls; i++) MovieRunner.predictRating(model, users.get(i % users.size()), movies[i % movies.length])
+        long start = allocatedBytes()
+        for (int i = 0; i < calls; i++) {
+            MovieRunner.predictRating(model, users.get(i % users.size()), movies[(i * 7) % movies.length])
+        }
+        double perCall = (allocatedBytes() - start) / (double) calls
+        assertTrue("Predicting allocates " + perCall + " bytes per call", perCall < PREDICT_BUDGET_PER_CALL)
+    }
+}
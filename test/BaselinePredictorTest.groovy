@@ -0,0 +1,77 @@
+import org.junit.Test
+
+
+class BaselinePredictorTest extends GroovyTestCase {
+
+    static final String trainingFile = "test-res/ra.testing.txt"
+
+    @Test
+    void testFittedBiases() {
+        MovieHandler ratings = new MovieHandler(trainingFile)
+        List<MovieRating> all = ratings.getUserIDs().collectMany { ratings.getUsersToRatings().get(it) }
+        double mu = all.sum { it.getRating() } / all.size()
+
+        // without regularization, the first pass gives the mean residual of each movie
+        BaselinePredictor first = new BaselinePredictor(ratings, 0, 0, 1)
+        assertEquals(mu, first.getGlobalMean(), 1e-12)
+        for (int movieID: ratings.getMovieIDArray()) {
+            List<MovieRating> movieRatings = all.findAll { it.getMovieID() == movieID }
+            double expected = movieRatings.sum { it.getRating() - mu } / movieRatings.size()
+            assertEquals(expected, first.getMovieBias(ratings.getInternalMovieID(movieID)), 1e-12)
+        }
+
+        // the user biases of the last pass fit the movie biases, regularized by lambdaUser
+        BaselinePredictor baseline = new BaselinePredictor(ratings, 10, 25, 3)
+        for (int u = 0; u < ratings.getNumUsers(); u++) {
+            List<MovieRating> userRatings = ratings.getUsersToRatings().get(ratings.getUserIDs().get(u))
+            double residuals = userRatings.sum {
+                it.getRating() - mu - baseline.getMovieBias(ratings.getInternalMovieID(it.getMovieID()))
+            }
+            assertEquals(residuals / (10 + userRatings.size()), baseline.getUserBias(u), 1e-12)
+            // regularized towards 0
+            assertTrue(Math.abs(baseline.getUserBias(u)) < Math.abs(residuals / userRatings.size()) + 1e-12)
+        }
+    }
+
+    @Test
+    void testColdStart() {
+        MovieHandler ratings = new MovieHandler(trainingFile)
+        BaselinePredictor baseline = ratings.getBaseline()
+        double mu = baseline.getGlobalMean()
+        int movie = ratings.getInternalMovieID(370)
+        int user = ratings.getInternalUserID(2)
+        // unknown ids have a bias of 0
+        assertEquals(0.0, baseline.getUserBias(-1))
+        assertEquals(0.0, baseline.getUserBias(ratings.getNumUsers()))
+        assertEquals(0.0, baseline.getMovieBias(-1))
+        assertEquals(mu + baseline.getMovieBias(movie), baseline.predict(-1, 370))
+        assertEquals(mu + baseline.getUserBias(user), baseline.predict(user, 999999))
+        assertEquals(mu, baseline.predict(-1, 999999))
+        assertEquals(mu + baseline.getUserBias(user) + baseline.getMovieBias(movie), baseline.predict(user, 370))
+        // the movie looked up once
+        assertEquals(movie, baseline.getMovieIndex(370))
+        assertTrue(baseline.getMovieIndex(999999) < 0)
+        assertEquals(baseline.predict(user, 370), baseline.predictByIndex(user, baseline.getMovieIndex(370)))
+        assertEquals(baseline.predict(-1, 999999), baseline.predictByIndex(-1, baseline.getMovieIndex(999999)))
+
+        // no ratings at all: the default rating
+        MovieHandler empty = new MovieHandler("test-res/missing.txt")
+        assertEquals(MovieHandler.DEFAULT_RATING, new BaselinePredictor(empty).getGlobalMean())
+    }
+
+    @Test
+    void testPredictUnknownIDs() {
+        MovieHandler ratings = new MovieHandler(trainingFile)
+        ModelGeneration model = new ModelGeneration(0, ratings, new PearsonsCorrelation(ratings))
+        BaselinePredictor baseline = ratings.getBaseline()
+        int user = ratings.getInternalUserID(2)
+        for (boolean baselinePrediction: [true, false]) {
+            // unknown user: the baseline, whatever the centring
+            assertEquals(baseline.predict(-1, 370), MovieRunner.predictRating(model, 999999, 370, baselinePrediction))
+            assertEquals(baseline.getGlobalMean(), MovieRunner.predictRating(model, 999999, 999999, baselinePrediction))
+        }
+        // unknown movie: no neighbor rated it, the centre of the user
+        assertEquals(baseline.predict(user, 999999), MovieRunner.predictRating(model, 2, 999999, true))
+        assertEquals(ratings.getUserAverageRating(user), MovieRunner.predictRating(model, 2, 999999, false))
+    }
+}
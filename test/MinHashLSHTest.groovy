@@ -0,0 +1,61 @@
+import org.junit.Test
+
+
+class MinHashLSHTest extends GroovyTestCase {
+
+    @Test
+    void testBandsForCollisionProbability() {
+        for (double similarity: [0.1, 0.3, 0.5]) {
+            for (int rows: [1, 2, 4]) {
+                int bands = MinHashLSH.bandsForCollisionProbability(rows, similarity, 0.9)
+                // the smallest number of bands that reaches the probability
+                assertTrue(1 - Math.pow(1 - Math.pow(similarity, rows), bands) >= 0.9)
+                if (bands > 1) assertTrue(1 - Math.pow(1 - Math.pow(similarity, rows), bands - 1) < 0.9)
+            }
+        }
+        assertEquals(230, MinHashLSH.bandsForCollisionProbability(2, 0.1, 0.9))
+        assertEquals(1, MinHashLSH.bandsForCollisionProbability(2, 1.0, 0.9))
+        shouldFail(IllegalArgumentException) { MinHashLSH.bandsForCollisionProbability(2, 0.0, 0.9) }
+    }
+
+    @Test
+    void testCandidates() {
+        MovieHandler ratings = new MovieHandler("test-res/ra.testing_big.txt")
+        int N = ratings.getNumUsers()
+        MinHashLSH lsh = new MinHashLSH(ratings, 20, 2, 42)
+        int[] ids = lsh.getCandidateIDs()
+        assertEquals(0, lsh.getCandidatesStart(0))
+        assertEquals(ids.length, lsh.getCandidatesEnd(N - 1))
+        for (int u = 0; u < N; u++) {
+            if (u > 0) assertEquals(lsh.getCandidatesEnd(u - 1), lsh.getCandidatesStart(u))
+            // upper triangle, sorted, each pair once
+            for (int c = lsh.getCandidatesStart(u); c < lsh.getCandidatesEnd(u); c++) {
+                assertTrue(ids[c] > u)
+                assertTrue(ids[c] < N)
+                if (c > lsh.getCandidatesStart(u)) assertTrue(ids[c - 1] < ids[c])
+            }
+        }
+        // more bands only add candidates
+        MinHashLSH more = new MinHashLSH(ratings, 40, 2, 42)
+        assertTrue(more.getNumCandidates() > lsh.getNumCandidates())
+        for (int u = 0; u < N; u++) {
+            int[] moreIDs = Arrays.copyOfRange(more.getCandidateIDs(), more.getCandidatesStart(u), more.getCandidatesEnd(u))
+            for (int c = lsh.getCandidatesStart(u); c < lsh.getCandidatesEnd(u); c++) {
+                assertTrue(Arrays.binarySearch(moreIDs, ids[c]) >= 0)
+            }
+        }
+
+        // the approximate build only has the candidate pairs
+        PearsonsCorrelation approx = new PearsonsCorrelation(ratings, N, lsh)
+        for (int u = 0; u < N; u++) {
+            Set<Neighbor> hood = approx.getUserNeighborhood(u)
+            if (hood == null) continue
+            for (Neighbor n: hood) {
+                int u1 = Math.min(u, n.getUserID())
+                int u2 = Math.max(u, n.getUserID())
+                int[] candidates = Arrays.copyOfRange(ids, lsh.getCandidatesStart(u1), lsh.getCandidatesEnd(u1))
+                assertTrue(Arrays.binarySearch(candidates, u2) >= 0)
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+import org.junit.Test
+
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+
+class ModelGenerationTest extends GroovyTestCase {
+
+    static final String trainingFile = "test-res/ra.testing.txt"
+    static final String matrixFile = "test-res/matrix.testing.txt"
+
+    @Test
+    void testSwapWaitsForDrain() {
+        MovieRunner.model.set(ModelGeneration.load(0, trainingFile, matrixFile))
+        ModelGeneration old = MovieRunner.acquireModel()
+        Future<ModelGeneration> reload = MovieRunner.reloadModel(trainingFile, matrixFile)
+        // swapped in, but not done while a request runs on the old generation
+        shouldFail(TimeoutException) { reload.get(200, TimeUnit.MILLISECONDS) }
+        assertEquals(1, MovieRunner.model.get().getNumber())
+        assertFalse(old.isRetired())
+
+        old.release()
+        ModelGeneration next = reload.get(10, TimeUnit.SECONDS)
+        assertSame(next, MovieRunner.model.get())
+        assertTrue(old.isRetired())
+        assertEquals(MovieRunner.predictRating(old, 1, 370, true), MovieRunner.predictRating(next, 1, 370, true))
+    }
+
+    @Test
+    void testFailedReloadKeepsModel() {
+        ModelGeneration current = ModelGeneration.load(0, trainingFile, matrixFile)
+        MovieRunner.model.set(current)
+        for (List<String> files: [["test-res/missing.txt", matrixFile], [trainingFile, "test-res/missing.txt"],
+                                  // matrix of other ratings
+                                  ["test-res/ra.testing_big.txt", matrixFile]]) {
+            Future<ModelGeneration> reload = MovieRunner.reloadModel(files[0], files[1])
+            shouldFailWithCause(IOException) { reload.get(10, TimeUnit.SECONDS) }
+            assertSame(current, MovieRunner.model.get())
+        }
+        assertFalse(current.isRetired())
+
+        // a generation built elsewhere is validated the same way
+        MovieHandler empty = new MovieHandler("test-res/missing.txt")
+        shouldFailWithCause(IOException) {
+            MovieRunner.publishModel(new ModelGeneration(1, empty, new PearsonsCorrelation(empty))).get()
+        }
+        assertSame(current, MovieRunner.model.get())
+    }
+
+    @Test
+    void testAcquireDuringSwaps() {
+        MovieRunner.model.set(ModelGeneration.load(0, trainingFile, matrixFile))
+        AtomicBoolean running = new AtomicBoolean(true)
+        AtomicInteger errors = new AtomicInteger()
+        AtomicInteger requests = new AtomicInteger()
+        List<Thread> threads = (0..<4).collect {
+            Thread.start {
+                while (running.get()) {
+                    ModelGeneration current = MovieRunner.acquireModel()
+                    try {
+                        // never handed out once drained, nor dropped while in use
+                        if (current.isRetired()) errors.incrementAndGet()
+                        MovieRunner.predictRating(current, 1, 370, true)
+                        if (current.isRetired()) errors.incrementAndGet()
+                    } finally {
+                        current.release()
+                    }
+                    requests.incrementAndGet()
+                }
+            }
+        }
+        for (int i = 0; i < 10; i++) {
+            MovieRunner.reloadModel(trainingFile, matrixFile).get(10, TimeUnit.SECONDS)
+        }
+        running.set(false)
+        threads*.join()
+        assertEquals(0, errors.get())
+        assertTrue(requests.get() > 0)
+        assertEquals(10, MovieRunner.model.get().getNumber())
+    }
+}
@@ -0,0 +1,65 @@
+import org.junit.Test
+
+
+class MovieMetadataTest extends GroovyTestCase {
+
+    // genres in movies.testing.txt: Drama if id % 2 == 0, Comedy if id % 3 == 0, Action if id % 5 == 0
+    static final String trainingFile = "test-res/ra.testing.txt"
+    static final String moviesFile = "test-res/movies.testing.txt"
+
+    @Test
+    void testGenres() {
+        MovieHandler ratings = new MovieHandler(trainingFile)
+        MovieMetadata movies = new MovieMetadata(ratings, moviesFile)
+        assertEquals(["Action", "Comedy", "Drama"] as Set, movies.getGenres())
+        assertEquals("Movie 370 (1994)", movies.getTitle(370))
+        // not rated: not indexed
+        assertNull(movies.getTitle(99999))
+        List<Integer> action = (ratings.getMovieIDArray() as List<Integer>).findAll { it % 5 == 0 }
+        assertEquals(action, movies.toMovieIDs(movies.getGenre("Action")) as List)
+        assertEquals(0, MovieMetadata.cardinality(movies.getGenre("Western")))
+    }
+
+    @Test
+    void testCandidates() {
+        MovieHandler ratings = new MovieHandler(trainingFile)
+        MovieMetadata movies = new MovieMetadata(ratings, moviesFile)
+        List<Integer> seen = ratings.getUsersToRatings().get(1)*.getMovieID()
+        assertEquals(seen.sort(), movies.toMovieIDs(movies.getSeenMovies(1)) as List)
+
+        List<Integer> comedies = (ratings.getMovieIDArray() as List<Integer>).findAll { it % 3 == 0 }
+        assertEquals(comedies - seen, movies.toMovieIDs(movies.candidates(1, "Comedy")) as List)
+        List<Integer> comediesOrAction = (ratings.getMovieIDArray() as List<Integer>).findAll { it % 3 == 0 || it % 5 == 0 }
+        assertEquals(comediesOrAction - seen, movies.toMovieIDs(movies.candidates(1, "Comedy", "Action")) as List)
+        // no genre: all unseen movies
+        assertEquals((ratings.getMovieIDArray() as List) - seen, movies.toMovieIDs(movies.candidates(1)) as List)
+        // unknown user: nothing seen
+        assertEquals(comedies, movies.toMovieIDs(movies.candidates(999999, "Comedy")) as List)
+    }
+
+    @Test
+    void testRecommend() {
+        MovieHandler ratings = new MovieHandler(trainingFile)
+        MovieMetadata movies = new MovieMetadata(ratings, moviesFile)
+        ModelGeneration model = new ModelGeneration(0, ratings, new PearsonsCorrelation(ratings))
+        for (int userID: ratings.getUserIDs() + [999999]) {
+            int[] candidates = movies.toMovieIDs(movies.candidates(userID, "Drama"))
+            // scoring from the ratings of the movies gives the predictions of predictRating
+            double[] predictions = MovieRunner.predictCandidates(model, movies, userID, candidates)
+            for (int c = 0; c < candidates.length; c++) {
+                assertEquals(MovieRunner.predictRating(model, userID, candidates[c], MovieRunner.baselinePrediction),
+                        predictions[c])
+            }
+
+            int[] recommended = MovieRunner.recommend(model, movies, userID, 3, "Drama")
+            assertEquals(Math.min(3, candidates.length), recommended.length)
+            double previous = Double.MAX_VALUE
+            for (int movieID: recommended) {
+                assertTrue(candidates.contains(movieID))
+                double prediction = MovieRunner.predictRating(model, userID, movieID)
+                assertTrue(prediction <= previous)
+                previous = prediction
+            }
+        }
+    }
+}
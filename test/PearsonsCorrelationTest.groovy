@@ -314,6 +314,237 @@ class PearsonsCorrelationTest extends GroovyTestCase {
         assertEquals(k, hood.size())
     }
 
+    @Test
+    void testMergeShards() {
+        // merging all shards, keeping all neighbors, gives the single process matrix
+        MovieHandler ratings = new MovieHandler("test-res/ra.testing_big.txt")
+        int N = ratings.getNumUsers()
+        PearsonsCorrelation full = new PearsonsCorrelation(ratings)
+        List<String> shardFiles = new ArrayList<>()
+        for (int s = 0; s < 3; s++) {
+            File shardFile = File.createTempFile("shard" + s, ".txt")
+            shardFile.deleteOnExit()
+            new PearsonsCorrelation(ratings, N, s, 3).writeShard(shardFile.getPath())
+            shardFiles.add(shardFile.getPath())
+        }
+        PearsonsCorrelation merged = new PearsonsCorrelation(shardFiles, 0)
+        for (int i = 0; i < N; i++) {
+            Set<Neighbor> expected = full.getUserNeighborhood(i)
+            Set<Neighbor> actual = merged.getUserNeighborhood(i)
+            if (expected == null) {
+                assertNull(actual)
+                continue
+            }
+            assertEquals(expected.size(), actual.size())
+            for (Neighbor n: actual) {
+                assertEquals(full.get(ratings.getUserIDs().get(i), ratings.getUserIDs().get(n.getUserID())),
+                        n.getSimilarity())
+            }
+        }
+    }
+
+    @Test
+    void testMergeShardsChecksHeaders() {
+        MovieHandler ratings = new MovieHandler("test-res/ra.testing_big.txt")
+        int N = ratings.getNumUsers()
+        Map<String, String> files = [:]
+        for (String shards: ["0/2", "1/2", "0/3"]) {
+            File shardFile = File.createTempFile("shard", ".txt")
+            shardFile.deleteOnExit()
+            String[] s = shards.split("/")
+            new PearsonsCorrelation(ratings, N, s[0] as int, s[1] as int).writeShard(shardFile.getPath())
+            files[shards] = shardFile.getPath()
+        }
+        assertEquals(N, new PearsonsCorrelation([files["1/2"], files["0/2"]], 0).getNumUsers())
+        // the same shard twice, a missing shard, shards of different builds
+        shouldFail(IllegalArgumentException) { new PearsonsCorrelation([files["0/2"], files["0/2"]], 0) }
+        shouldFail(IllegalArgumentException) { new PearsonsCorrelation([files["1/2"]], 0) }
+        shouldFail(IllegalArgumentException) { new PearsonsCorrelation([files["0/3"], files["1/2"]], 0) }
+        shouldFail(IllegalArgumentException) { new PearsonsCorrelation([files["0/2"], "test-res/missing.txt"], 0) }
+    }
+
+    @Test
+    void testReorderedBuildFiles() {
+        // keeping all neighbors, a build on reordered users writes the same files, which read back the same
+        String trainingFile = "test-res/ra.testing_big.txt"
+        MovieHandler sorted = new MovieHandler(trainingFile)
+        MovieHandler reordered = new MovieHandler(trainingFile, true)
+        assertTrue(reordered.isReordered())
+        PearsonsCorrelation expected = new PearsonsCorrelation(sorted)
+        PearsonsCorrelation actual = new PearsonsCorrelation(reordered)
+        for (String suffix: [".txt", ".bin"]) {
+            File expectedFile = File.createTempFile("expected", suffix)
+            File actualFile = File.createTempFile("actual", suffix)
+            expectedFile.deleteOnExit()
+            actualFile.deleteOnExit()
+            if (suffix == ".txt") {
+                expected.writeCorrelationMatrix(expectedFile.getPath())
+                actual.writeCorrelationMatrix(actualFile.getPath())
+            } else {
+                expected.writeNeighborhoods(expectedFile.getPath())
+                actual.writeNeighborhoods(actualFile.getPath())
+            }
+            assertTrue(Arrays.equals(expectedFile.bytes, actualFile.bytes))
+
+            PearsonsCorrelation read = new PearsonsCorrelation(reordered, actualFile.getPath())
+            for (int u = 0; u < reordered.getNumUsers(); u++) {
+                CompactNeighborhood built = actual.getCompactNeighborhood(u)
+                CompactNeighborhood loaded = read.getCompactNeighborhood(u)
+                // the matrix file has an empty line for users without neighbors
+                assertEquals(built == null ? 0 : built.size(), loaded == null ? 0 : loaded.size())
+                if (built == null) continue
+                CompactNeighborhood.Cursor b = built.cursor()
+                CompactNeighborhood.Cursor l = loaded.cursor()
+                while (b.next()) {
+                    assertTrue(l.next())
+                    assertEquals(b.getUserID(), l.getUserID())
+                    assertEquals(b.getSimilarity(), l.getSimilarity())
+                }
+            }
+        }
+    }
+
+    @Test
+    void testDerivedNeighborhoods() {
+        // neighbourhoods derived from a build with all neighbors are the ones of a build with k
+        MovieHandler ratings = new MovieHandler("test-res/ra.testing_big.txt")
+        int N = ratings.getNumUsers()
+        PearsonsCorrelation all = new PearsonsCorrelation(ratings, N, false)
+        for (int k: [2, 5]) {
+            PearsonsCorrelation direct = new PearsonsCorrelation(ratings, k)
+            PearsonsCorrelation derived = new PearsonsCorrelation(all, k)
+            for (int i = 0; i < N; i++) {
+                Set<Neighbor> expected = direct.getUserNeighborhood(i)
+                Set<Neighbor> actual = derived.getUserNeighborhood(i)
+                if (expected == null) {
+                    assertNull(actual)
+                    continue
+                }
+                assertEquals(expected, actual)
+                for (Neighbor n: actual) {
+                    assertEquals(direct.getCompactNeighborhood(i).getSimilarity(n.getUserID()), n.getSimilarity())
+                }
+            }
+        }
+
+        // from a bounded build: the best of the neighbors it kept, not the ones of a build with k
+        PearsonsCorrelation bounded = new PearsonsCorrelation(ratings, 10, false)
+        for (int k: [2, 5]) {
+            PearsonsCorrelation derived = new PearsonsCorrelation(bounded, k)
+            for (int i = 0; i < N; i++) {
+                Set<Neighbor> source = bounded.getUserNeighborhood(i)
+                Set<Neighbor> actual = derived.getUserNeighborhood(i)
+                if (source == null) {
+                    assertNull(actual)
+                    continue
+                }
+                assertEquals(Math.min(k, source.size()), actual.size())
+                for (Neighbor n: actual) {
+                    Neighbor kept = source.find { it.getUserID() == n.getUserID() }
+                    assertNotNull(kept)
+                    assertEquals(kept.getSimilarity(), n.getSimilarity(), 1e-4)
+                }
+            }
+        }
+    }
+
+    @Test
+    void testCompactNeighborhood() {
+        Set<Neighbor> neighbors = new HashSet<>()
+        neighbors.add(new Neighbor(70000, -0.2432))
+        neighbors.add(new Neighbor(3, 1))
+        neighbors.add(new Neighbor(200, 0.49304))
+        CompactNeighborhood compact = CompactNeighborhood.of(neighbors)
+        assertEquals(3, compact.size())
+        // ids are decoded in order, similarities rounded to 4 decimals
+        CompactNeighborhood.Cursor c = compact.cursor()
+        assertTrue(c.next())
+        assertEquals(3, c.getUserID())
+        assertEquals(1.0, c.getSimilarity())
+        assertTrue(c.next())
+        assertEquals(200, c.getUserID())
+        assertEquals(0.493, c.getSimilarity())
+        assertTrue(c.next())
+        assertEquals(70000, c.getUserID())
+        assertEquals(-0.2432, c.getSimilarity())
+        assertFalse(c.next())
+        assertEquals(Double.NaN, compact.getSimilarity(4))
+        assertEquals(neighbors, compact.toSet())
+    }
+
+    @Test
+    void testReadNeighborhoodsFile() {
+        MovieHandler ratings = new MovieHandler("test-res/ra.testing.txt")
+        PearsonsCorrelation matrix = new PearsonsCorrelation(ratings)
+        File neighborhoodFile = File.createTempFile("neighborhoods", ".bin")
+        neighborhoodFile.deleteOnExit()
+        matrix.writeNeighborhoods(neighborhoodFile.getPath())
+        PearsonsCorrelation p = new PearsonsCorrelation(ratings, neighborhoodFile.getPath())
+        DecimalFormat df = getDecimalFormat()
+        assertEquals(".9172", df.format(p.get(2, 3)))
+        // Neighbor equality only compares the ids: compare the similarities too
+        for (int u = 0; u < ratings.getNumUsers(); u++) {
+            CompactNeighborhood expected = matrix.getCompactNeighborhood(u)
+            CompactNeighborhood actual = p.getCompactNeighborhood(u)
+            if (expected == null) {
+                assertNull(actual)
+                continue
+            }
+            assertEquals(expected.size(), actual.size())
+            CompactNeighborhood.Cursor e = expected.cursor()
+            CompactNeighborhood.Cursor a = actual.cursor()
+            while (e.next()) {
+                assertTrue(a.next())
+                assertEquals(e.getUserID(), a.getUserID())
+                assertEquals(e.getSimilarity(), a.getSimilarity())
+            }
+        }
+    }
+
+    @Test
+    void testConcurrentCorrelation() {
+        // many threads sharing one instance get the same correlations as a single thread
+        MovieHandler ratings = new MovieHandler("test-res/ra.testing_big.txt")
+        PearsonsCorrelation p = new PearsonsCorrelation(ratings, 5)
+        int N = ratings.getNumUsers()
+        double[] expected = new double[N]
+        for (int u = 1; u < N; u++) {
+            expected[u] = p.correlation(0, u)
+        }
+        List<Thread> threads = new ArrayList<>()
+        List<Integer> errors = Collections.synchronizedList(new ArrayList<Integer>())
+        for (int t = 0; t < 8; t++) {
+            threads.add(Thread.start {
+                for (int u = 1; u < N; u++) {
+                    double cor = p.correlation(0, u)
+                    if (Double.compare(cor, expected[u]) != 0) errors.add(u)
+                }
+            })
+        }
+        threads.each { it.join() }
+        assertTrue("Same correlations in all threads", errors.isEmpty())
+    }
+
+    @Test
+    void testCorrelationAfterPutRating() {
+        // correlations use the ratings at construction, whatever is streamed in after
+        MovieHandler ratings = new MovieHandler("test-res/ra.testing.txt")
+        int N = ratings.getNumUsers()
+        for (boolean baselineCentring: [false, true]) {
+            PearsonsCorrelation p = baselineCentring ? new PearsonsCorrelation(ratings, N, ratings.getBaseline())
+                    : new PearsonsCorrelation(ratings, N)
+            double[] expected = (1..<N).collect { p.correlation(0, it) } as double[]
+            for (int userID: ratings.getUserIDs()) {
+                ratings.putRating(userID, 999999, 5, 1200000000)
+                ratings.putRating(userID, 370, 1, 1200000000)
+            }
+            ratings.commitRatings()
+            for (int u = 1; u < N; u++) {
+                assertEquals(0, Double.compare(expected[u - 1], p.correlation(0, u)))
+            }
+        }
+    }
+
     private static String readLine(String file, int lineNo){
         BufferedReader br
         try {
@@ -0,0 +1,77 @@
+import org.junit.Test
+
+
+class PredictionCacheTest extends GroovyTestCase {
+
+    @Test
+    void testCapacity() {
+        PredictionCache cache = new PredictionCache(32)
+        for (int i = 0; i < 1000; i++) {
+            cache.put(PredictionCache.key(i, i + 1), i)
+        }
+        assertEquals(32, cache.size())
+        assertEquals(1000 - 32, cache.getEvictions())
+    }
+
+    @Test
+    void testReferencedEntrySurvives() {
+        // CLOCK gives entries that were read since the last sweep a second chance
+        PredictionCache cache = new PredictionCache(32)
+        long hot = PredictionCache.key(1, 1)
+        cache.put(hot, 4.5)
+        for (int i = 2; i < 1000; i++) {
+            assertEquals(4.5, cache.get(hot))
+            cache.put(PredictionCache.key(i, i), 1)
+        }
+        assertEquals(998, cache.getHits())
+        assertEquals(0, cache.getMisses())
+        assertTrue(Double.isNaN(cache.get(PredictionCache.key(2, 2))))
+        assertEquals(998 / 999d, cache.getHitRatio(), 1e-9)
+    }
+
+    @Test
+    void testClear() {
+        PredictionCache cache = new PredictionCache(100)
+        long key = PredictionCache.key(3, 7)
+        cache.put(key, 3.0)
+        cache.clear()
+        assertFalse(cache.contains(key))
+        assertEquals(0, cache.size())
+        cache.put(key, 3.5)
+        assertEquals(3.5, cache.get(key))
+    }
+
+    @Test
+    void testPredictRatings() {
+        // one pass for several movies gives the same predictions as one call per movie
+        MovieHandler ratings = new MovieHandler("test-res/ra.testing_big.txt")
+        ModelGeneration model = new ModelGeneration(0, ratings, new PearsonsCorrelation(ratings))
+        // some movies, plus a duplicate and a movie without ratings
+        int[] movieIDs = ratings.getMovieIDArray()
+        int[] movies = Arrays.copyOf(movieIDs, 202)
+        movies[200] = movieIDs[0]
+        movies[201] = 999999
+        for (int userID: ratings.getUserIDs().subList(0, 10) + [999999]) {
+            for (boolean baselinePrediction: [true, false]) {
+                double[] predictions = MovieRunner.predictRatings(model, userID, movies, baselinePrediction)
+                for (int m = 0; m < movies.length; m++) {
+                    assertEquals(MovieRunner.predictRating(model, userID, movies[m], baselinePrediction), predictions[m])
+                }
+            }
+        }
+    }
+
+    @Test
+    void testPrefetch() {
+        MovieHandler ratings = new MovieHandler("test-res/ra.testing_big.txt")
+        ModelGeneration model = new ModelGeneration(0, ratings, new PearsonsCorrelation(ratings), 1000)
+        int userID = ratings.getUserIDs().get(0)
+        int[] movies = Arrays.copyOf(ratings.getMovieIDArray(), 200)
+        MovieRunner.prefetchRatings(model, userID, movies)
+        for (int movieID: movies) {
+            assertEquals(MovieRunner.predictRating(model, userID, movieID, MovieRunner.baselinePrediction),
+                    MovieRunner.predictRating(model, userID, movieID))
+        }
+        assertEquals(1.0, model.getPredictionCache().getHitRatio())
+    }
+}
@@ -0,0 +1,208 @@
+import org.junit.Test
+
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+
+class RatingStreamTest extends GroovyTestCase {
+
+    static final String trainingFile = "test-res/ra.testing.txt"
+
+    @Test
+    void testPutRating() {
+        MovieHandler ratings = new MovieHandler(trainingFile)
+        int user = ratings.getInternalUserID(1)
+        double userAvg = ratings.getUserAverageRating(user)
+        int numRatings = ratings.getUsersToRatings().get(1).size()
+        // 1::370::5::838984596, also rated 3 and 4 by users 2 and 3
+        assertEquals(4.0, ratings.getMovieAverageRating(370))
+
+        MovieRating previous = ratings.putRating(1, 370, 2, 900000000)
+        assertEquals(5.0, previous.getRating())
+        assertEquals(838984596L, previous.getTimestamp())
+        assertEquals(3.0, ratings.getMovieAverageRating(370))
+        assertEquals(userAvg - 3.0 / numRatings, ratings.getUserAverageRating(user), 1e-12)
+
+        // older than the stored rating: ignored
+        MovieRating stored = ratings.putRating(1, 370, 1, 800000000)
+        assertEquals(2.0, stored.getRating())
+        assertTrue(stored.getTimestamp() > 800000000)
+        assertEquals(3.0, ratings.getMovieAverageRating(370))
+        // same timestamp: replaced
+        assertEquals(2.0, ratings.putRating(1, 370, 3.5, 900000000).getRating())
+        assertEquals(3.5, ratings.getMovieAverageRating(370))
+
+        // new rating of a known movie
+        assertNull(ratings.putRating(4, 370, 1, 900000000))
+        assertEquals(11.5 / 4, ratings.getMovieAverageRating(370))
+    }
+
+    @Test
+    void testCommitRatings() {
+        MovieHandler ratings = new MovieHandler(trainingFile)
+        int N = ratings.getNumUsers()
+        int M = ratings.getNumMovies()
+        int movie370 = ratings.getInternalMovieID(370)
+        double average370 = ratings.getMovieAverageRating(370)
+        RatingsByMovie byMovie = ratings.getRatingsByMovie()
+        ModelGeneration model = new ModelGeneration(0, ratings, new PearsonsCorrelation(ratings))
+
+        // a new user before all others, a new user after them, and a movie before all others
+        assertNull(ratings.putRating(0, 370, 1, 900000000))
+        assertNull(ratings.putRating(99, 1, 4, 900000000))
+        assertNull(ratings.putRating(0, 1, 2, 900000001))
+        // not looked up before the commit
+        assertEquals(-1, ratings.getInternalUserID(0))
+        assertEquals(-1, ratings.getInternalMovieID(1))
+        ratings.commitRatings()
+
+        assertEquals(N + 2, ratings.getNumUsers())
+        assertEquals(M + 1, ratings.getNumMovies())
+        // new users get the next internal ids, the true ids stay sorted
+        assertEquals(N, ratings.getInternalUserID(0))
+        assertEquals(N + 1, ratings.getInternalUserID(99))
+        assertTrue(ratings.isReordered())
+        assertEquals(0, ratings.toSortedIndex(N))
+        assertEquals(N, ratings.fromSortedIndex(0))
+        assertEquals(1.5, ratings.getUserAverageRating(N))
+        // the new movie shifts the internal ids of the others
+        assertEquals(0, ratings.getInternalMovieID(1))
+        assertEquals(movie370 + 1, ratings.getInternalMovieID(370))
+        assertEquals(3.0, ratings.getMovieAverageRating(1))
+        assertEquals((3 * average370 + 1) / 4, ratings.getMovieAverageRating(370), 1e-12)
+        assertEquals(ratings.getMovieIDArray().toList().sort(), ratings.getMovieIDArray().toList())
+        // the ratings by movie are built again, over the new internal ids
+        RatingsByMovie rebuilt = ratings.getRatingsByMovie()
+        assertNotSame(byMovie, rebuilt)
+        assertEquals(byMovie.size() + 3, rebuilt.size())
+        assertEquals(M + 1, rebuilt.getNumMovies())
+        assertEquals([N, N + 1], rebuilt.getUsers()[rebuilt.getStart(0)..<rebuilt.getEnd(0)].toList())
+        assertEquals(N, rebuilt.getUsers()[rebuilt.getEnd(movie370 + 1) - 1])
+
+        // the matrix was built before: new users have no neighbourhood
+        assertNull(model.getSimilarities().getCompactNeighborhood(N))
+        BaselinePredictor baseline = ratings.getBaseline()
+        assertEquals(baseline.predict(N, 370), MovieRunner.predictRating(model, 0, 370, true))
+        assertEquals(1.5, MovieRunner.predictRating(model, 0, 370, false))
+    }
+
+    @Test
+    void testStream() {
+        MovieHandler ratings = new MovieHandler(trainingFile)
+        File log = File.createTempFile("ratings", ".log")
+        log.deleteOnExit()
+        RatingStream stream = new RatingStream(ratings, log.getPath(), 3, 10)
+        List<List<RatingStream.Change>> published = []
+        stream.addListener({ changes -> published.add(changes) } as RatingStream.Listener)
+
+        // after the ratings of the training file. The last line is still being written
+        log.text = "1::370::2::1200000002\n2::370::4::1200000001\n3::37"
+        assertEquals(2, stream.poll())
+        assertEquals(1, published.size())
+        // applied in timestamp order
+        assertEquals([2, 1], published[0]*.getUserID())
+        assertEquals(3.0, published[0][0].getPreviousRating())
+        assertFalse(published[0][0].isInsert())
+        assertEquals(0, stream.poll())
+
+        log.append("0::4::1200000003\n5::370::1::1200000004\n")
+        assertEquals(2, stream.poll())
+        assertEquals(4.0, published[1][0].getRating())
+        assertTrue(published[1][1].isInsert())
+        assertTrue(ratings.getInternalUserID(5) >= 0)
+
+        // at most batchSize ratings per poll, and a late rating is skipped
+        log.append("1::371::1::1200000005\n1::372::1::1200000006\n1::373::1::1200000007\n1::370::5::800000000\n")
+        assertEquals(3, stream.poll())
+        assertEquals(1, stream.poll())
+        assertEquals(3, published.size())
+        assertEquals(2.0, ratings.getUsersToRatings().get(1).find { it.getMovieID() == 370 }.getRating())
+
+        // truncated log: read again from the start
+        log.text = "4::370::3::1200000008\n"
+        assertEquals(1, stream.poll())
+        assertEquals(4, published.size())
+        assertEquals(4, published[3][0].getUserID())
+    }
+
+    @Test
+    void testSnapshot() {
+        MovieHandler ratings = new MovieHandler(trainingFile)
+        ratings.putRating(0, 1, 2, 1200000000)
+        shouldFail(IllegalStateException) { ratings.snapshot() }
+        ratings.commitRatings()
+        MovieHandler snapshot = ratings.snapshot()
+        int N = ratings.getNumUsers()
+        double average370 = ratings.getMovieAverageRating(370)
+
+        // later updates of the original don't show in the snapshot
+        ratings.putRating(1, 370, 1, 1200000001)
+        ratings.putRating(99, 1, 4, 1200000002)
+        ratings.commitRatings()
+        assertEquals(N, snapshot.getNumUsers())
+        assertEquals(-1, snapshot.getInternalUserID(99))
+        assertEquals(average370, snapshot.getMovieAverageRating(370))
+        assertEquals(5.0, snapshot.getUsersToRatings().get(1).find { it.getMovieID() == 370 }.getRating())
+        assertEquals(2.0, snapshot.getUserAverageRating(snapshot.getInternalUserID(0)))
+        // and the other way around
+        snapshot.putRating(2, 370, 1, 1200000003)
+        assertEquals(3.0, ratings.getUsersToRatings().get(2).find { it.getMovieID() == 370 }.getRating())
+    }
+
+    @Test
+    void testStreamWhilePredicting() {
+        MovieHandler streamed = new MovieHandler(trainingFile)
+        int N = streamed.getNumUsers()
+        MovieHandler first = streamed.snapshot()
+        MovieRunner.model.set(new ModelGeneration(0, first, new PearsonsCorrelation(first)))
+        File log = File.createTempFile("ratings", ".log")
+        log.deleteOnExit()
+        RatingStream stream = new RatingStream(streamed, log.getPath(), 10, 10)
+        List<Future<ModelGeneration>> published = []
+        stream.addListener({ changes -> published.add(MovieRunner.publishRatings(streamed, N)) } as RatingStream.Listener)
+
+        AtomicBoolean running = new AtomicBoolean(true)
+        AtomicInteger errors = new AtomicInteger()
+        AtomicInteger requests = new AtomicInteger()
+        List<Thread> threads = (0..<4).collect {
+            Thread.start {
+                while (running.get()) {
+                    ModelGeneration current = MovieRunner.acquireModel()
+                    try {
+                        // the ratings of a generation don't change while it serves
+                        int numUsers = current.getRatings().getNumUsers()
+                        for (int userID: [1, 2, 3, 100, 120]) {
+                            double rating = MovieRunner.predictRating(current, userID, 370)
+                            if (Double.isNaN(rating)) errors.incrementAndGet()
+                        }
+                        if (current.getRatings().getNumUsers() != numUsers) errors.incrementAndGet()
+                    } catch (Throwable t) {
+                        t.printStackTrace()
+                        errors.incrementAndGet()
+                    } finally {
+                        current.release()
+                    }
+                    requests.incrementAndGet()
+                }
+            }
+        }
+        // new users, new movies and updates, in batches of 10
+        for (int i = 0; i < 30; i++) {
+            log.append((100 + i) + "::370::" + (1 + i % 5) + "::" + (1200000000 + i) + "\n"
+                    + (100 + i) + "::" + (5000 + i) + "::4::" + (1200000000 + i) + "\n"
+                    + (1 + i % 3) + "::370::" + (1 + i % 5) + "::" + (1200000000 + i) + "\n")
+            while (stream.poll() > 0) { }
+        }
+        published*.get(10, TimeUnit.SECONDS)
+        running.set(false)
+        threads*.join()
+
+        assertEquals(0, errors.get())
+        assertTrue(requests.get() > 0)
+        assertEquals(N + 30, MovieRunner.model.get().getRatings().getNumUsers())
+        assertNotSame(streamed, MovieRunner.model.get().getRatings())
+        assertEquals(N, first.getNumUsers())
+    }
+}